@@ -136,6 +136,35 @@ public class FileUtil {
     return copiedFiles.build();
   }
 
+  /**
+   * Copies the whole directory tree under sourceDir into destinationDir, including empty
+   * directories.
+   */
+  public static void copyDirectoryTree(File sourceDir, File destinationDir) throws IOException {
+    Path source = sourceDir.toPath();
+    Path destination = destinationDir.toPath();
+    Files.walkFileTree(
+        source,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Files.createDirectories(destination.resolve(source.relativize(dir)));
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Files.copy(
+                file,
+                destination.resolve(source.relativize(file)),
+                StandardCopyOption.COPY_ATTRIBUTES);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
   public static class AutoDelete implements AutoCloseable {
 
     private boolean persist;
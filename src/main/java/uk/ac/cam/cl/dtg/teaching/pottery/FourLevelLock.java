@@ -17,6 +17,11 @@
  */
 package uk.ac.cam.cl.dtg.teaching.pottery;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -42,45 +47,151 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * ----------------+----------------+----------------+-------------+------------- FullExclusion | |
  * | | GitDbOperation | | X | X | X FileReading | | X | X | FileWriting | | X | |
  *
+ * <p>The lock can be made fair and can be given a timeout, after which waiting for it fails with a
+ * LockTimeoutException. It keeps histograms of how long lockers waited for and held it, and tracks
+ * who is holding it or waiting for it right now so that we can see what a stuck repo is doing.
+ *
  * @author acr31
  */
 public class FourLevelLock {
 
-  private final ReentrantReadWriteLock topLevelLock = new ReentrantReadWriteLock();
-  private final ReentrantReadWriteLock secondLevelLock = new ReentrantReadWriteLock();
+  /** The levels of lock that can be taken. */
+  public enum Level {
+    FULL_EXCLUSION,
+    GIT_DB_OPERATION,
+    FILE_READING,
+    FILE_WRITING
+  }
+
+  private final ReentrantReadWriteLock topLevelLock;
+  private final ReentrantReadWriteLock secondLevelLock;
+
+  /** How long to wait for the lock before giving up, or zero to wait forever. */
+  private final long timeoutMillis;
+
+  private final LatencyHistogram waitTimes = new LatencyHistogram();
+  private final LatencyHistogram holdTimes = new LatencyHistogram();
+
+  private final Set<AutoCloseableLock> holders = ConcurrentHashMap.newKeySet();
+  private final Set<AutoCloseableLock> waiters = ConcurrentHashMap.newKeySet();
+
+  /** Create an unfair lock which waits forever. */
+  public FourLevelLock() {
+    this(false, 0);
+  }
+
+  /**
+   * Create a new lock.
+   *
+   * @param fair true to grant the lock in roughly the order it was asked for
+   * @param timeoutMillis how long to wait for the lock before giving up, or zero to wait forever
+   */
+  public FourLevelLock(boolean fair, long timeoutMillis) {
+    this.topLevelLock = new ReentrantReadWriteLock(fair);
+    this.secondLevelLock = new ReentrantReadWriteLock(fair);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public AutoCloseableLock takeFullExclusionLock()
+      throws InterruptedException, LockTimeoutException {
+    return new AutoCloseableLock(
+        Level.FULL_EXCLUSION, topLevelLock.writeLock(), secondLevelLock.writeLock());
+  }
 
-  public AutoCloseableLock takeFullExclusionLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.writeLock(), secondLevelLock.writeLock());
+  public AutoCloseableLock takeGitDbOpLock() throws InterruptedException, LockTimeoutException {
+    return new AutoCloseableLock(Level.GIT_DB_OPERATION, topLevelLock.readLock(), null);
   }
 
-  public AutoCloseableLock takeGitDbOpLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), null);
+  public AutoCloseableLock takeFileReadingLock() throws InterruptedException, LockTimeoutException {
+    return new AutoCloseableLock(
+        Level.FILE_READING, topLevelLock.readLock(), secondLevelLock.readLock());
   }
 
-  public AutoCloseableLock takeFileReadingLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), secondLevelLock.readLock());
+  public AutoCloseableLock takeFileWritingLock() throws InterruptedException, LockTimeoutException {
+    return new AutoCloseableLock(
+        Level.FILE_WRITING, topLevelLock.readLock(), secondLevelLock.writeLock());
   }
 
-  public AutoCloseableLock takeFileWritingLock() throws InterruptedException {
-    return new AutoCloseableLock(topLevelLock.readLock(), secondLevelLock.writeLock());
+  /** Return true if anyone is holding or waiting for this lock. */
+  public boolean isInUse() {
+    return !holders.isEmpty() || !waiters.isEmpty();
+  }
+
+  /** Return a description of the current holders and waiters and the wait and hold times. */
+  public ImmutableMap<String, Object> getStatus() {
+    long now = System.currentTimeMillis();
+    return ImmutableMap.of(
+        "holders", describe(holders, now),
+        "waiters", describe(waiters, now),
+        "waitTimes", waitTimes.toMap(),
+        "holdTimes", holdTimes.toMap());
+  }
+
+  private static ImmutableList<ImmutableMap<String, Object>> describe(
+      Set<AutoCloseableLock> lockers, long now) {
+    ImmutableList.Builder<ImmutableMap<String, Object>> result = ImmutableList.builder();
+    for (AutoCloseableLock locker : lockers) {
+      result.add(
+          ImmutableMap.of(
+              "thread", locker.threadName,
+              "level", locker.level.name(),
+              "millis", now - locker.since));
+    }
+    return result.build();
   }
 
   public class AutoCloseableLock implements AutoCloseable {
 
-    private Lock l1;
-    private Lock l2;
+    private final Level level;
+    private final String threadName;
+    private final Lock l1;
+    private final Lock l2;
+
+    /** When we started waiting for the lock and then when we got it. */
+    private volatile long since;
 
-    private AutoCloseableLock(Lock l1, Lock l2) throws InterruptedException {
+    private AutoCloseableLock(Level level, Lock l1, Lock l2)
+        throws InterruptedException, LockTimeoutException {
+      this.level = level;
+      this.threadName = Thread.currentThread().getName();
       this.l1 = l1;
       this.l2 = l2;
-      l1.lockInterruptibly();
-      if (l2 != null) {
-        try {
-          l2.lockInterruptibly();
-        } catch (InterruptedException e) {
-          l1.unlock();
-          throw e;
+      this.since = System.currentTimeMillis();
+      waiters.add(this);
+      try {
+        acquire(l1, since);
+        if (l2 != null) {
+          try {
+            acquire(l2, since);
+          } catch (InterruptedException | LockTimeoutException e) {
+            l1.unlock();
+            throw e;
+          }
         }
+      } finally {
+        waiters.remove(this);
+      }
+      long acquired = System.currentTimeMillis();
+      waitTimes.record(acquired - since);
+      since = acquired;
+      holders.add(this);
+    }
+
+    private void acquire(Lock l, long startTime)
+        throws InterruptedException, LockTimeoutException {
+      if (timeoutMillis <= 0) {
+        l.lockInterruptibly();
+        return;
+      }
+      long remaining = timeoutMillis - (System.currentTimeMillis() - startTime);
+      if (!l.tryLock(Math.max(remaining, 0), TimeUnit.MILLISECONDS)) {
+        throw new LockTimeoutException(
+            "Timed out after "
+                + timeoutMillis
+                + "ms waiting for "
+                + level
+                + " lock. Currently held by "
+                + describe(holders, System.currentTimeMillis()));
       }
     }
 
@@ -90,6 +201,8 @@ public class FourLevelLock {
         l2.unlock();
       }
       l1.unlock();
+      holders.remove(this);
+      holdTimes.record(System.currentTimeMillis() - since);
     }
   }
 }
@@ -0,0 +1,70 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/** Counts durations into power of ten millisecond buckets. Safe to update from many threads. */
+public class LatencyHistogram {
+
+  /** Inclusive upper bound of each bucket. There is one more unbounded bucket after these. */
+  private static final long[] BUCKET_LIMITS_MILLIS = {1, 10, 100, 1000, 10000, 100000};
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_LIMITS_MILLIS.length + 1);
+  private final AtomicLong totalMillis = new AtomicLong();
+  private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+
+  /** Record a single duration. */
+  public void record(long millis) {
+    int bucket = 0;
+    while (bucket < BUCKET_LIMITS_MILLIS.length && millis > BUCKET_LIMITS_MILLIS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    totalMillis.addAndGet(millis);
+    maxMillis.accumulate(millis);
+  }
+
+  /** Return the number of durations recorded. */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /** Return a summary of the histogram suitable for returning from the API. */
+  public ImmutableMap<String, Object> toMap() {
+    ImmutableMap.Builder<String, Long> buckets = ImmutableMap.builder();
+    for (int i = 0; i < BUCKET_LIMITS_MILLIS.length; i++) {
+      buckets.put("<=" + BUCKET_LIMITS_MILLIS[i] + "ms", counts.get(i));
+    }
+    buckets.put(
+        ">" + BUCKET_LIMITS_MILLIS[BUCKET_LIMITS_MILLIS.length - 1] + "ms",
+        counts.get(BUCKET_LIMITS_MILLIS.length));
+    return ImmutableMap.of(
+        "count", getCount(),
+        "totalMillis", totalMillis.get(),
+        "maxMillis", maxMillis.get(),
+        "buckets", buckets.build());
+  }
+}
@@ -20,6 +20,7 @@ package uk.ac.cam.cl.dtg.teaching.pottery;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Predicate;
 
 public class UuidGenerator {
 
@@ -43,4 +44,19 @@ public class UuidGenerator {
       }
     }
   }
+
+  /**
+   * Generate a new UUID which is not reserved and which isTaken rejects. This is for callers who
+   * can cheaply check whether an id is in use and so don't want to reserve every existing id up
+   * front. The result is not reserved so the caller must claim it atomically (e.g. by creating a
+   * directory or inserting a primary key) and fail if someone else got there first.
+   */
+  public synchronized String generate(Predicate<String> isTaken) {
+    while (true) {
+      String result = UUID.randomUUID().toString();
+      if (!allocated.contains(result) && !isTaken.test(result)) {
+        return result;
+      }
+    }
+  }
 }
@@ -47,6 +47,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.containers.DockerContainerWithReuseImpl
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.GuiceDependencyController;
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.RepoController;
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.StatusController;
+import uk.ac.cam.cl.dtg.teaching.pottery.controllers.SubmissionWaitResumer;
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.SubmissionsController;
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.TasksController;
 import uk.ac.cam.cl.dtg.teaching.pottery.controllers.WorkerController;
@@ -54,6 +55,8 @@ import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.PostgresDatabase;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoPool;
 import uk.ac.cam.cl.dtg.teaching.pottery.ssh.SshManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
@@ -98,6 +101,7 @@ public class ApplicationModule implements Module {
   @Override
   public void configure(Binder binder) {
     binder.bind(SubmissionsController.class);
+    binder.bind(SubmissionWaitResumer.class).in(Singleton.class);
     binder.bind(RepoController.class);
     binder.bind(TasksController.class);
     binder.bind(WorkerController.class);
@@ -111,6 +115,8 @@ public class ApplicationModule implements Module {
     binder.bind(ApiListingResourceJSON.class);
     binder.bind(ResourceListingProvider.class);
     binder.bind(RepoFactory.class).in(Singleton.class);
+    binder.bind(RepoMaintenance.class).asEagerSingleton();
+    binder.bind(RepoPool.class).in(Singleton.class);
     binder.bind(TaskFactory.class).in(Singleton.class);
     binder.bind(TaskIndex.class).in(Singleton.class);
     binder.bind(ContainerManager.class).in(Singleton.class);
@@ -30,8 +30,11 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.annotation.WebListener;
 import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextListener;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.controllers.SubmissionWaitResumer;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoMaintenance;
 import uk.ac.cam.cl.dtg.teaching.pottery.ssh.SshManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
@@ -63,7 +66,10 @@ public class GuiceResteasyBootstrapServletContextListenerV3
         .map(binding -> binding.getProvider().get())
         .filter(Objects::nonNull)
         .forEach(Worker::stop);
+    injector.getInstance(SubmissionWaitResumer.class).stop();
     injector.getInstance(ContainerManager.class).stop();
+    injector.getInstance(RepoMaintenance.class).stop();
+    injector.getInstance(RepoFactory.class).stop();
     injector.getInstance(Database.class).stop();
   }
 
@@ -19,10 +19,11 @@ package uk.ac.cam.cl.dtg.teaching.pottery.app;
 
 import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
-import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
 
 @SuppressWarnings("serial")
 @WebServlet(
     urlPatterns = {"/api/*"},
+    asyncSupported = true,
     initParams = {@WebInitParam(name = "resteasy.servlet.mapping.prefix", value = "/api/")})
-public class HttpServletDispatcherV3 extends HttpServletDispatcher {}
+public class HttpServletDispatcherV3 extends HttpServlet30Dispatcher {}
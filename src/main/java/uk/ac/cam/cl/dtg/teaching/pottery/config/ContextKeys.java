@@ -29,4 +29,18 @@ public class ContextKeys {
 
   public static final String DOCKER_MD5SUM_CONTAINER_OUTPUT = "dockerMd5sumContainerOutput";
   public static final String CONTAINER_TIMEOUT_MULTIPLIER = "containerTimeoutMultiplier";
+
+  public static final String REPO_MAINTENANCE_THREADS = "repoMaintenanceThreads";
+  public static final String REPO_MAINTENANCE_LOOSE_OBJECT_THRESHOLD =
+      "repoMaintenanceLooseObjectThreshold";
+
+  public static final String REPO_MEMORY_STORAGE_PREFIX = "repoMemoryStoragePrefix";
+  public static final String REPO_MEMORY_STORAGE_MAX_MEGABYTES = "repoMemoryStorageMaxMegabytes";
+  public static final String REPO_MEMORY_STORAGE_MAX_VALIDITY_MINUTES =
+      "repoMemoryStorageMaxValidityMinutes";
+
+  public static final String REPO_LOCK_TIMEOUT_SECONDS = "repoLockTimeoutSeconds";
+  public static final String REPO_LOCK_FAIR = "repoLockFair";
+
+  public static final String SUPERSEDE_QUEUED_SUBMISSIONS = "supersedeQueuedSubmissions";
 }
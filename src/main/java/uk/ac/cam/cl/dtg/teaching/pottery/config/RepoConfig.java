@@ -25,28 +25,131 @@ public class RepoConfig {
 
   private File repoPrefix;
 
+  /** Root of the memory-backed storage for short-lived repos, or null if there isn't one. */
+  private File memoryRoot;
+
+  private long memoryMaxBytes;
+
+  private int memoryMaxValidityMinutes;
+
+  private long lockTimeoutMillis;
+
+  private boolean lockFair;
+
+  private boolean supersedeQueuedSubmissions;
+
+  /**
+   * Create a config which keeps every repo on disk, waits forever for repo locks and tests every
+   * submission.
+   */
+  public RepoConfig(String prefix) {
+    this(prefix, "", 0, 0, 0, false, false);
+  }
+
   @Inject
-  public RepoConfig(@Named(ContextKeys.LOCAL_STORAGE_PREFIX) String prefix) {
+  public RepoConfig(
+      @Named(ContextKeys.LOCAL_STORAGE_PREFIX) String prefix,
+      @Named(ContextKeys.REPO_MEMORY_STORAGE_PREFIX) String memoryPrefix,
+      @Named(ContextKeys.REPO_MEMORY_STORAGE_MAX_MEGABYTES) int memoryMaxMegabytes,
+      @Named(ContextKeys.REPO_MEMORY_STORAGE_MAX_VALIDITY_MINUTES) int memoryMaxValidityMinutes,
+      @Named(ContextKeys.REPO_LOCK_TIMEOUT_SECONDS) int lockTimeoutSeconds,
+      @Named(ContextKeys.REPO_LOCK_FAIR) boolean lockFair,
+      @Named(ContextKeys.SUPERSEDE_QUEUED_SUBMISSIONS) boolean supersedeQueuedSubmissions) {
     this.repoPrefix = new File(prefix, "repos");
+    this.memoryRoot = memoryPrefix.isEmpty() ? null : new File(memoryPrefix, "repos");
+    this.memoryMaxBytes = memoryMaxMegabytes * 1024L * 1024L;
+    this.memoryMaxValidityMinutes = memoryMaxValidityMinutes;
+    this.lockTimeoutMillis = lockTimeoutSeconds * 1000L;
+    this.lockFair = lockFair;
+    this.supersedeQueuedSubmissions = supersedeQueuedSubmissions;
   }
 
   public File getRepoRoot() {
     return new File(repoPrefix, "repos");
   }
 
+  public File getRepoArchiveRoot() {
+    return new File(repoPrefix, "repo-archive");
+  }
+
   public File getRepoTestingRoot() {
     return new File(repoPrefix, "repo-testing");
   }
 
+  public File getRepoMirrorRoot() {
+    return new File(repoPrefix, "repo-mirror");
+  }
+
   public String getWebtagPrefix() {
     return "online-";
   }
 
+  /** Root of the memory-backed storage for short-lived repos, or null if it is turned off. */
+  public File getRepoMemoryRoot() {
+    return memoryRoot;
+  }
+
+  /** Amount of memory-backed storage that short-lived repos may use. */
+  public long getRepoMemoryMaxBytes() {
+    return memoryMaxBytes;
+  }
+
+  /** Repos valid for at most this many minutes are candidates for memory-backed storage. */
+  public int getRepoMemoryMaxValidityMinutes() {
+    return memoryMaxValidityMinutes;
+  }
+
+  /** How long to wait for the lock on a repo before giving up, or zero to wait forever. */
+  public long getRepoLockTimeoutMillis() {
+    return lockTimeoutMillis;
+  }
+
+  /** Whether the lock on a repo should be granted in the order it was asked for. */
+  public boolean isRepoLockFair() {
+    return lockFair;
+  }
+
+  /**
+   * Whether scheduling a submission should cancel any submission for the same repo and action
+   * which hasn't started yet.
+   */
+  public boolean isSupersedeQueuedSubmissions() {
+    return supersedeQueuedSubmissions;
+  }
+
+  /** Return the directory for this repo whether it is in memory-backed storage or on disk. */
   public File getRepoDir(String repoId) {
-    return new File(getRepoRoot(), repoId);
+    if (memoryRoot != null) {
+      File memoryDir = getRepoMemoryDir(repoId);
+      if (memoryDir.exists()) {
+        return memoryDir;
+      }
+    }
+    return ShardedDirectories.locate(getRepoRoot(), repoId);
+  }
+
+  /** Location of this repo in memory-backed storage. Only valid if getRepoMemoryRoot is set. */
+  public File getRepoMemoryDir(String repoId) {
+    return ShardedDirectories.getShardedLocation(memoryRoot, repoId);
+  }
+
+  /** Location for a repo which is being moved out of memory-backed storage onto disk. */
+  public File getRepoDiskDir(String repoId) {
+    return ShardedDirectories.getShardedLocation(getRepoRoot(), repoId);
+  }
+
+  /** Location of the git bundle for an archived repo. */
+  public File getRepoArchiveFile(String repoId) {
+    File shardDir = ShardedDirectories.getShardedLocation(getRepoArchiveRoot(), repoId);
+    return new File(shardDir.getParentFile(), repoId + ".bundle");
   }
 
   public File getRepoTestingDir(String repoId) {
-    return new File(getRepoTestingRoot(), repoId);
+    return ShardedDirectories.locate(getRepoTestingRoot(), repoId);
+  }
+
+  /** Location of the local bare mirror of a remote repo. */
+  public File getRepoMirrorDir(String repoId) {
+    return ShardedDirectories.getShardedLocation(getRepoMirrorRoot(), repoId);
   }
 }
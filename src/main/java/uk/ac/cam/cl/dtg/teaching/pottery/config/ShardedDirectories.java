@@ -0,0 +1,72 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.config;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Spreads directories named by id over a two level tree (root/ab/cd/id) so that no single directory
+ * ends up with hundreds of thousands of entries. The two levels come from a hash of the id so they
+ * are evenly used whatever the ids look like.
+ *
+ * <p>Directories created before this layout was introduced live directly under the root. Lookups
+ * fall back to that location so that they keep working until everything has been moved. Nothing is
+ * remembered between lookups: the sharded location is checked first every time, so a lookup made
+ * whilst a directory is being moved never sticks to the old location.
+ */
+public class ShardedDirectories {
+
+  /** Length of the name of each level of shard directory. */
+  private static final int SHARD_NAME_LENGTH = 2;
+
+  /** Return the location in the sharded layout for this id. */
+  public static File getShardedLocation(File root, String id) {
+    String hash = Hashing.sha256().hashString(id, StandardCharsets.UTF_8).toString();
+    File first = new File(root, hash.substring(0, SHARD_NAME_LENGTH));
+    File second = new File(first, hash.substring(SHARD_NAME_LENGTH, 2 * SHARD_NAME_LENGTH));
+    return new File(second, id);
+  }
+
+  /** Return the location of this id in the old flat layout. */
+  public static File getFlatLocation(File root, String id) {
+    return new File(root, id);
+  }
+
+  /**
+   * Return the directory for this id. This is the sharded location unless the directory only
+   * exists in the old flat layout.
+   */
+  public static File locate(File root, String id) {
+    File sharded = getShardedLocation(root, id);
+    if (sharded.exists()) {
+      return sharded;
+    }
+    File flat = getFlatLocation(root, id);
+    if (flat.exists()) {
+      return flat;
+    }
+    return sharded;
+  }
+
+  /** Return true if this entry of the root directory is a shard rather than a flat entry. */
+  public static boolean isShard(String rootEntryName) {
+    return rootEntryName.length() == SHARD_NAME_LENGTH;
+  }
+}
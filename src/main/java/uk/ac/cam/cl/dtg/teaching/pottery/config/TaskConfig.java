@@ -43,7 +43,28 @@ public class TaskConfig {
   }
 
   public File getTaskCopyDir(String copyId) {
-    return new File(getTaskCopyRoot(), copyId);
+    return ShardedDirectories.locate(getTaskCopyRoot(), copyId);
+  }
+
+  public File getTaskObjectStoreRoot() {
+    return new File(taskPrefix, "objects");
+  }
+
+  /**
+   * Location of the git object store shared between the task copies built from this commit of a
+   * task and the repos made from them.
+   */
+  public File getTaskObjectStoreDir(String commitId) {
+    return ShardedDirectories.getShardedLocation(getTaskObjectStoreRoot(), commitId);
+  }
+
+  public File getParameterisationCacheRoot() {
+    return new File(taskPrefix, "parameterisation-cache");
+  }
+
+  /** Location of the cached parameterisation output for all variants of a task copy. */
+  public File getParameterisationCacheDir(String copyId) {
+    return ShardedDirectories.getShardedLocation(getParameterisationCacheRoot(), copyId);
   }
 
   public File getSolutionDir(String copyId, String variant) {
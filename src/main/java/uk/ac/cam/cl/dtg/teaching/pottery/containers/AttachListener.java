@@ -17,6 +17,7 @@
  */
 package uk.ac.cam.cl.dtg.teaching.pottery.containers;
 
+import java.util.function.Consumer;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 
@@ -25,9 +26,16 @@ class AttachListener implements WebSocketListener {
   private final StringBuilder output = new StringBuilder();
   private boolean closed = false;
   private final int outputLimitChars;
+  private final Consumer<String> outputListener;
 
-  AttachListener(int outputLimitChars) {
+  /**
+   * Create a listener which collects output up to the limit given. If outputListener is not null
+   * then it is also passed each piece of output as it arrives. It is called on the websocket's
+   * thread so it must not block.
+   */
+  AttachListener(int outputLimitChars, Consumer<String> outputListener) {
     this.outputLimitChars = outputLimitChars;
+    this.outputListener = outputListener;
   }
 
   public synchronized String getOutput() {
@@ -53,7 +61,7 @@ class AttachListener implements WebSocketListener {
   @Override
   public void onWebSocketBinary(byte[] payload, int offset, int len) {
     if (!closed) {
-      output.append(new String(payload, offset, len));
+      append(new String(payload, offset, len));
       checkLength();
     }
   }
@@ -61,11 +69,18 @@ class AttachListener implements WebSocketListener {
   @Override
   public void onWebSocketText(String message) {
     if (!closed) {
-      output.append(message);
+      append(message);
     }
     checkLength();
   }
 
+  private void append(String chunk) {
+    output.append(chunk);
+    if (outputListener != null && !hasOverflowed()) {
+      outputListener.accept(chunk);
+    }
+  }
+
   synchronized boolean waitForClose(long timeoutMs) {
     long startTime = System.currentTimeMillis();
     try {
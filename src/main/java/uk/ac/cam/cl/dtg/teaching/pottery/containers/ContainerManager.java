@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
@@ -177,7 +178,8 @@ public class ContainerManager implements Stoppable {
       @Nonnull Execution execution,
       RepoInfo repoInfo,
       Map<String, ContainerExecResponse> stepResults,
-      Taint taint)
+      Taint taint,
+      Consumer<String> outputListener)
       throws ApiUnavailableException {
     ImmutableMap<String, Binding> bindings =
         addRepoInfoToBinding(baseImageBinding(), repoInfo)
@@ -230,6 +232,7 @@ public class ContainerManager implements Stoppable {
                 return null;
               },
               taint);
+      executionConfig.setOutputListener(outputListener);
       return execute(execution, executionConfig, stepName);
     } catch (ContainerExecutionException e) {
       return ContainerExecResponse.create(
@@ -258,6 +261,12 @@ public class ContainerManager implements Stoppable {
 
     void startStep(String stepName);
 
+    /**
+     * Called with output from the step as it runs, before finishStep is called with all of it. This
+     * is called on the thread reading from the container so it must not block.
+     */
+    default void stepOutput(String stepName, String output) {}
+
     void finishStep(String stepName, String status, long msec, String output, String containerName);
   }
 
@@ -347,7 +356,8 @@ public class ContainerManager implements Stoppable {
                 execution,
                 repoInfo,
                 stepResults,
-                new Taint(repoInfo.getRepoId(), false));
+                new Taint(repoInfo.getRepoId(), false),
+                output -> callback.stepOutput(stepName, output));
         stepResults.put(stepName, response);
         callback.finishStep(
             stepName,
@@ -210,7 +210,8 @@ public abstract class DockerContainer implements ContainerBackend {
     long startTime = System.currentTimeMillis();
     AttachListener attachListener =
         new AttachListener(
-            executionConfig.containerRestrictions().getOutputLimitKilochars() * 1000);
+            executionConfig.containerRestrictions().getOutputLimitKilochars() * 1000,
+            executionConfig.outputListener());
 
     ScheduledFuture<Boolean> timeoutKiller =
         scheduleTimeoutKiller(
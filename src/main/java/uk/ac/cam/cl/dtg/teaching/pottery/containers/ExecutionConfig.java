@@ -23,6 +23,8 @@ import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import org.apache.commons.codec.digest.DigestUtils;
 import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerConfig;
 import uk.ac.cam.cl.dtg.teaching.docker.model.ContainerHostConfig;
@@ -44,6 +46,10 @@ abstract class ExecutionConfig {
 
   abstract Taint taint();
 
+  /** Called with each piece of output as it arrives from the container, if set. */
+  @Nullable
+  abstract Consumer<String> outputListener();
+
   static Builder builder() {
     return new AutoValue_ExecutionConfig.Builder();
   }
@@ -120,6 +126,8 @@ abstract class ExecutionConfig {
 
     abstract Builder setTaint(Taint taint);
 
+    abstract Builder setOutputListener(@Nullable Consumer<String> outputListener);
+
     abstract ExecutionConfig build();
   }
 }
@@ -21,11 +21,12 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import org.apache.commons.io.IOUtils;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 
 public class UncontainerImpl implements ContainerBackend {
@@ -86,12 +87,23 @@ public class UncontainerImpl implements ContainerBackend {
           "RAM_LIMIT_MEGABYTES",
           String.valueOf(executionConfig.containerRestrictions().getDiskWriteLimitMegabytes()));
       Process process = processBuilder.start();
-      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      StringBuffer outputBuffer = new StringBuffer();
       Thread copyThread =
           new Thread(
               () -> {
-                try {
-                  IOUtils.copy(process.getInputStream(), bos);
+                // Decode the whole stream with one reader so that characters split across reads
+                // come out whole
+                try (Reader in =
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                  char[] buffer = new char[4096];
+                  int read;
+                  while ((read = in.read(buffer)) != -1) {
+                    String chunk = new String(buffer, 0, read);
+                    outputBuffer.append(chunk);
+                    if (executionConfig.outputListener() != null) {
+                      executionConfig.outputListener().accept(chunk);
+                    }
+                  }
                 } catch (IOException e) {
                   throw new RuntimeException(e);
                 }
@@ -99,7 +111,7 @@ public class UncontainerImpl implements ContainerBackend {
       copyThread.start();
       process.waitFor();
       copyThread.join();
-      String output = new String(bos.toByteArray());
+      String output = outputBuffer.toString();
       synchronized (this) {
         while (block) {
           blocked = true;
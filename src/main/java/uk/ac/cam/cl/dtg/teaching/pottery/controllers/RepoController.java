@@ -17,18 +17,43 @@
  */
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.inject.Named;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
-import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
@@ -43,29 +68,48 @@ import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoTag;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoPool;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Parameterisation;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
-import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.RepoController {
 
   protected static final Logger LOG = LoggerFactory.getLogger(RepoController.class);
+
+  /** Most files which a batch update may contain. */
+  private static final int MAX_BATCH_ENTRIES = 1000;
+
+  /** Most bytes which the files in a batch update may add up to once uncompressed. */
+  private static final long MAX_BATCH_BYTES = 64L * 1024 * 1024;
   private RepoFactory repoFactory;
   private TaskIndex taskIndex;
   private Worker worker;
+  private RepoPool repoPool;
+
+  /** The current request, injected by resteasy. Used for evaluating conditional requests. */
+  @Context private Request request;
+
+  /** The headers of the current request, injected by resteasy. Used for range requests. */
+  @Context private HttpHeaders headers;
+
+  /** The response to the current request, injected by resteasy. Used for setting ETags. */
+  @Context private HttpServletResponse servletResponse;
 
   /** Create a new RepoController. */
   @Inject
   public RepoController(
       RepoFactory repoFactory,
       TaskIndex taskIndex,
-      @Named(Repo.PARAMETERISATION_WORKER) Worker worker) {
+      @Named(Repo.PARAMETERISATION_WORKER) Worker worker,
+      RepoPool repoPool) {
     super();
     this.repoFactory = repoFactory;
     this.taskIndex = taskIndex;
     this.worker = worker;
+    this.repoPool = repoPool;
   }
 
   @Override
@@ -91,6 +135,7 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
       throw new RetiredTaskException("Cannot start a new repository for task " + taskId);
     }
     int mutationId;
+    String copyId;
     try (TaskCopy c = usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
       if (!c.getVariants().contains(variant)) {
         throw new TaskMissingVariantException("Variant " + variant + " is not defined");
@@ -99,46 +144,21 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
           Optional.ofNullable(c.getDetail().getParameterisation())
               .map(p -> seed % p.getCount())
               .orElse(-1);
+      copyId = c.getCopyId();
+    }
+    int validityMinutes = validityMinutesInteger == null ? 60 : validityMinutesInteger;
+    if (remote.equals(RepoInfo.REMOTE_UNSET)) {
+      Repo pooled =
+          repoPool.claim(
+              taskId, usingTestingVersion, variant, mutationId, copyId, validityMinutes);
+      if (pooled != null) {
+        return pooled.toRepoInfoWithStatus();
+      }
     }
     Repo r =
-        repoFactory.createInstance(taskId, usingTestingVersion, null, variant, remote, mutationId);
-    String repoId = r.getRepoId();
-    worker.schedule(
-        new Job() {
-          @Override
-          public int execute(
-              TaskIndex taskIndex,
-              RepoFactory repoFactory,
-              ContainerManager containerManager,
-              Database database) {
-            try {
-              Task t = taskIndex.getTask(taskId);
-              try (TaskCopy c =
-                  usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
-                LOG.info("Initialising instance for repo " + repoId);
-                int validityMinutes = validityMinutesInteger == null ? 60 : validityMinutesInteger;
-                repoFactory.initialiseInstance(c, worker, database, repoId, validityMinutes);
-              }
-            } catch (TaskNotFoundException
-                | RepoNotFoundException
-                | RepoExpiredException
-                | RepoStorageException e) {
-              LOG.error("Failed to initialise repository", e);
-              try {
-                r.markError(database, e.getMessage());
-              } catch (RepoStorageException e1) {
-                LOG.error("Double fault trying to record repository error message", e1);
-              }
-              return Job.STATUS_FAILED;
-            }
-            return Job.STATUS_OK;
-          }
-
-          @Override
-          public String getDescription() {
-            return "Initialising repository";
-          }
-        });
+        repoFactory.createInstance(
+            taskId, usingTestingVersion, null, variant, remote, mutationId, validityMinutes);
+    repoFactory.scheduleInitialisation(r, usingTestingVersion, validityMinutes, worker);
     return r.toRepoInfoWithStatus();
   }
 
@@ -155,6 +175,106 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
         taskId, usingTestingVersion, validityMinutes, variant, RepoInfo.REMOTE_UNSET, seed);
   }
 
+  /**
+   * Create a repo for each of the given seeds in one go. The repos are initialised in the
+   * background, at most maxParallel at a time, and the batch can be polled for progress.
+   */
+  @POST
+  @Consumes("application/json")
+  @Produces("application/json")
+  @Path("/bulk/{taskId}")
+  @ApiOperation(
+      value = "Create a repository for each of the seeds given in the body",
+      notes =
+          "Returns the batch status including the new repo ids (in the same order as the seeds). "
+              + "Poll /repo/bulk/status/{batchId} for progress.")
+  public Map<String, Object> makeRepos(
+      @PathParam("taskId") String taskId,
+      @QueryParam("usingTestingVersion") Boolean usingTestingVersionBoolean,
+      @QueryParam("validityMinutes") Integer validityMinutesInteger,
+      @QueryParam("variant") String variant,
+      @QueryParam("maxParallel") Integer maxParallelInteger,
+      List<Integer> seeds)
+      throws TaskNotFoundException, RepoStorageException, RetiredTaskException,
+          TaskMissingVariantException {
+    boolean usingTestingVersion =
+        usingTestingVersionBoolean == null ? false : usingTestingVersionBoolean;
+    Task t = taskIndex.getTask(taskId);
+    if (t.isRetired()) {
+      throw new RetiredTaskException("Cannot start new repositories for task " + taskId);
+    }
+    List<Integer> mutationIds = new ArrayList<>();
+    try (TaskCopy c = usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
+      if (!c.getVariants().contains(variant)) {
+        throw new TaskMissingVariantException("Variant " + variant + " is not defined");
+      }
+      Parameterisation parameterisation = c.getDetail().getParameterisation();
+      for (int seed : seeds == null ? ImmutableList.<Integer>of() : seeds) {
+        mutationIds.add(parameterisation == null ? -1 : seed % parameterisation.getCount());
+      }
+    }
+    int validityMinutes = validityMinutesInteger == null ? 60 : validityMinutesInteger;
+    int maxParallel = maxParallelInteger == null ? 10 : maxParallelInteger;
+    return repoFactory
+        .createBatch(
+            taskId,
+            usingTestingVersion,
+            variant,
+            mutationIds,
+            validityMinutes,
+            maxParallel,
+            worker)
+        .getStatus();
+  }
+
+  @GET
+  @Produces("application/json")
+  @Path("/bulk/status/{batchId}")
+  @ApiOperation(value = "Get the progress of a batch of repositories created with /repo/bulk")
+  public Map<String, Object> getBatchStatus(@PathParam("batchId") String batchId)
+      throws RepoNotFoundException {
+    return repoFactory.getBatch(batchId).getStatus();
+  }
+
+  /**
+   * Set the number of repos to keep ready for a task variant. Requests for new repos for this task
+   * variant are served from the pool when possible. For a parameterised task the seeds which are
+   * about to be asked for can be given as (possibly repeated) seed query parameters so that the
+   * pool holds the right mutations.
+   */
+  @PUT
+  @Produces("application/json")
+  @Path("/pool/{taskId}")
+  @ApiOperation(
+      value = "Set the number of repos to keep initialised and ready to hand out for a task",
+      notes =
+          "Returns the status of all the pools. Set the target to 0 to stop refilling a pool. "
+              + "Give the seeds you expect to be used to fill the pool with their mutations first.")
+  public Map<String, Map<String, Integer>> setPoolTarget(
+      @PathParam("taskId") String taskId,
+      @QueryParam("variant") String variant,
+      @QueryParam("usingTestingVersion") Boolean usingTestingVersion,
+      @QueryParam("target") Integer target,
+      @QueryParam("seed") List<Integer> seeds)
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          RepoNotFoundException {
+    repoPool.setTarget(
+        taskId,
+        usingTestingVersion == null ? false : usingTestingVersion,
+        variant,
+        target == null ? 0 : target,
+        seeds == null ? ImmutableList.of() : seeds);
+    return repoPool.getPoolStatus();
+  }
+
+  @GET
+  @Produces("application/json")
+  @Path("/pool")
+  @ApiOperation(value = "List the target, ready and pending repo counts for each repo pool")
+  public Map<String, Map<String, Integer>> getPoolStatus() {
+    return repoPool.getPoolStatus();
+  }
+
   @Override
   public RepoInfoWithStatus getStatus(String repoId)
       throws RepoStorageException, RepoNotFoundException {
@@ -169,7 +289,33 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
   @Override
   public List<String> listFiles(String repoId, String tag)
       throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException {
-    return repoFactory.getInstance(repoId).listFiles(tag);
+    return listFiles(repoId, tag, request, servletResponse);
+  }
+
+  /**
+   * List the files for a tag, answering a matching If-None-Match from the given request with a 304
+   * and setting the ETag on the given response. Either may be null if there isn't one.
+   */
+  List<String> listFiles(
+      String repoId, String tag, Request request, HttpServletResponse servletResponse)
+      throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException {
+    Repo repo = repoFactory.getInstance(repoId);
+    ObjectId treeId = repo.resolveTree(tag);
+    if (treeId == null) {
+      return ImmutableList.of();
+    }
+    EntityTag entityTag = new EntityTag(treeId.getName());
+    if (request != null) {
+      Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+      if (notModified != null) {
+        // The interface fixes the return type so the only way to send a 304 is to throw it
+        throw new WebApplicationException(notModified.build());
+      }
+    }
+    if (servletResponse != null) {
+      servletResponse.setHeader(HttpHeaders.ETAG, "\"" + treeId.getName() + "\"");
+    }
+    return repo.listFiles(treeId);
   }
 
   @Override
@@ -179,9 +325,83 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
     if (altFileName != null) {
       fileName = altFileName;
     }
-    byte[] result = repoFactory.getInstance(repoId).readFile(tag, fileName);
-    StreamingOutput s = output -> output.write(result);
-    return Response.ok(s, MediaType.APPLICATION_OCTET_STREAM).build();
+    Repo repo = repoFactory.getInstance(repoId);
+    ObjectId blobId = repo.resolveFile(tag, fileName);
+    EntityTag entityTag = new EntityTag(blobId.getName());
+    if (request != null) {
+      Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+      if (notModified != null) {
+        return notModified.build();
+      }
+    }
+    long size = repo.getBlobSize(blobId);
+    long[] range = parseRange(headers == null ? null : headers.getHeaderString("Range"), size);
+    if (range != null) {
+      if (range[0] >= size || range[1] < range[0]) {
+        return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header("Content-Range", "bytes */" + size)
+            .build();
+      }
+      long start = range[0];
+      long length = range[1] - range[0] + 1;
+      StreamingOutput s = output -> repo.writeBlob(blobId, output, start, length);
+      return Response.status(Response.Status.PARTIAL_CONTENT)
+          .entity(s)
+          .type(MediaType.APPLICATION_OCTET_STREAM)
+          .tag(entityTag)
+          .header("Accept-Ranges", "bytes")
+          .header("Content-Range", "bytes " + start + "-" + range[1] + "/" + size)
+          .header("Content-Length", length)
+          .build();
+    }
+    StreamingOutput s;
+    if (size <= Repo.MAX_IN_MEMORY_FILE_BYTES) {
+      byte[] result = repo.readBlob(blobId);
+      s = output -> output.write(result);
+    } else {
+      s = output -> repo.writeBlob(blobId, output, 0, -1);
+    }
+    return Response.ok(s, MediaType.APPLICATION_OCTET_STREAM)
+        .tag(entityTag)
+        .header("Accept-Ranges", "bytes")
+        .header("Content-Length", size)
+        .build();
+  }
+
+  /**
+   * Parse a Range header asking for a single range of bytes.
+   *
+   * @return the first and last byte positions requested (inclusive) or null if there is no range
+   *     header or its not one we support, in which case the whole file should be returned.
+   */
+  private static long[] parseRange(String header, long size) {
+    if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    String first = spec.substring(0, dash).trim();
+    String last = spec.substring(dash + 1).trim();
+    try {
+      if (first.isEmpty()) {
+        if (last.isEmpty()) {
+          return null;
+        }
+        // A suffix range asking for the last N bytes
+        return new long[] {Math.max(0, size - Long.parseLong(last)), size - 1};
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+      if (start < size && end < start) {
+        return null;
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
   }
 
   @Override
@@ -199,6 +419,69 @@ public class RepoController implements uk.ac.cam.cl.dtg.teaching.pottery.api.Rep
     return Response.ok().entity("{\"message\":\"OK\"}").build();
   }
 
+  /**
+   * Update and delete a batch of files in a single commit. The request body is a zip file
+   * containing the new contents of each file to be updated. Files to delete are given as (possibly
+   * repeated) delete query parameters. The zip is read into memory so it is rejected if it has more
+   * than MAX_BATCH_ENTRIES files or they add up to more than MAX_BATCH_BYTES.
+   */
+  @POST
+  @Consumes("application/zip")
+  @Produces("application/json")
+  @Path("/{repoId}/batch/{tag}")
+  @ApiOperation(
+      value = "Update and delete several files in the repository as a single commit",
+      notes = "The body is a zip file of updated files. Can only be applied to HEAD.")
+  public Response updateFiles(
+      @PathParam("repoId") String repoId,
+      @PathParam("tag") String tag,
+      @QueryParam("delete") List<String> deletes,
+      InputStream zipBody)
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
+          RepoNotFoundException {
+    if (!Constants.HEAD.equals(tag)) {
+      throw new RepoStorageException("Can only update files at HEAD revision");
+    }
+    Map<String, byte[]> updates = new LinkedHashMap<>();
+    if (zipBody != null) {
+      try (ZipInputStream zip = new ZipInputStream(zipBody)) {
+        long remainingBytes = MAX_BATCH_BYTES;
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+          if (entry.isDirectory()) {
+            continue;
+          }
+          if (updates.size() >= MAX_BATCH_ENTRIES) {
+            throw badRequest("Batch updates can contain at most " + MAX_BATCH_ENTRIES + " files");
+          }
+          // The sizes recorded in the zip can't be trusted so stop reading once over the limit
+          ByteArrayOutputStream contents = new ByteArrayOutputStream();
+          remainingBytes -= IOUtils.copyLarge(zip, contents, 0, remainingBytes + 1);
+          if (remainingBytes < 0) {
+            throw badRequest("Batch updates can contain at most " + MAX_BATCH_BYTES + " bytes");
+          }
+          if (updates.put(entry.getName(), contents.toByteArray()) != null) {
+            throw badRequest("File " + entry.getName() + " appears more than once in the batch");
+          }
+        }
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to read zip file of updates", e);
+      }
+    }
+    repoFactory
+        .getInstance(repoId)
+        .updateFiles(updates, deletes == null ? ImmutableList.of() : deletes);
+    return Response.ok().entity("{\"message\":\"OK\"}").build();
+  }
+
+  private static WebApplicationException badRequest(String message) {
+    return new WebApplicationException(
+        Response.status(Response.Status.BAD_REQUEST)
+            .entity(ImmutableMap.of("message", message))
+            .type(MediaType.APPLICATION_JSON)
+            .build());
+  }
+
   @Override
   public Response deleteFile(String repoId, String tag, String fileName, String altFileName)
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
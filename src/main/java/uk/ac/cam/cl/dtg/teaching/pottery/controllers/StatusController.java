@@ -18,15 +18,24 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
 import java.util.Map;
 import java.util.TreeMap;
 import javax.inject.Named;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoMaintenance;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoPool;
 import uk.ac.cam.cl.dtg.teaching.pottery.ssh.SshManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
@@ -38,6 +47,9 @@ public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.S
   private final ContainerEnvConfig containerEnvConfig;
   private final ContainerManager containerManager;
   private final SshManager sshManager;
+  private final RepoFactory repoFactory;
+  private final RepoMaintenance repoMaintenance;
+  private final RepoPool repoPool;
 
   /** Create a new StatusController. */
   @Inject
@@ -45,12 +57,18 @@ public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.S
       @Named(Repo.GENERAL_WORKER) Worker worker,
       ContainerEnvConfig containerEnvConfig,
       ContainerManager containerManager,
-      SshManager sshManager) {
+      SshManager sshManager,
+      RepoFactory repoFactory,
+      RepoMaintenance repoMaintenance,
+      RepoPool repoPool) {
     super();
     this.worker = worker;
     this.containerEnvConfig = containerEnvConfig;
     this.containerManager = containerManager;
     this.sshManager = sshManager;
+    this.repoFactory = repoFactory;
+    this.repoMaintenance = repoMaintenance;
+    this.repoPool = repoPool;
   }
 
   @Override
@@ -63,12 +81,58 @@ public class StatusController implements uk.ac.cam.cl.dtg.teaching.pottery.api.S
         "ContainerManager.smoothedCallTime",
         String.valueOf(containerManager.getSmoothedCallTime()));
     response.put("ContainerManager.apiStatus", String.valueOf(containerManager.getApiStatus()));
+    response.put(
+        "RepoFactory.repositoryHandlesOpened",
+        String.valueOf(repoFactory.getRepositoryHandlesOpened()));
+    response.put(
+        "RepoFactory.repositoryHandlesReused",
+        String.valueOf(repoFactory.getRepositoryHandlesReused()));
+    response.put(
+        "RepoFactory.repositoryHandlesCached",
+        String.valueOf(repoFactory.getRepositoryHandlesCached()));
+    response.put(
+        "RepoMaintenance.reposChecked", String.valueOf(repoMaintenance.getReposChecked()));
+    response.put(
+        "RepoMaintenance.reposRepacked", String.valueOf(repoMaintenance.getReposRepacked()));
+    response.put(
+        "RepoMaintenance.reposArchived", String.valueOf(repoMaintenance.getReposArchived()));
+    response.put("RepoFactory.reposRestored", String.valueOf(repoFactory.getReposRestored()));
+    response.put(
+        "RepoFactory.submissionResultsReused",
+        String.valueOf(repoFactory.getSubmissionResultsReused()));
+    response.put(
+        "RepoMaintenance.reposSpilled", String.valueOf(repoMaintenance.getReposSpilled()));
+    response.put(
+        "RepoFactory.memoryStorageUsed", String.valueOf(repoFactory.getMemoryStorageUsed()));
+    response.put("RepoMaintenance.failures", String.valueOf(repoMaintenance.getFailures()));
+    response.put("RepoMaintenance.pending", String.valueOf(repoMaintenance.getPending()));
+    response.put("RepoPool.claimed", String.valueOf(repoPool.getClaimed()));
+    response.put("RepoPool.missed", String.valueOf(repoPool.getMissed()));
     response.put(
         "Pottery.user",
         String.format("%s(%d)", containerEnvConfig.getUserName(), containerEnvConfig.getUid()));
     return response;
   }
 
+  @GET
+  @Produces("application/json")
+  @Path("/locks")
+  @ApiOperation(
+      value = "List the repos whose locks are held or waited for right now",
+      notes = "Includes the holders and waiters of each lock and its wait and hold time histograms")
+  public Map<String, Map<String, Object>> getLockStatus() {
+    return repoFactory.getLockStatus();
+  }
+
+  @GET
+  @Produces("application/json")
+  @Path("/locks/{repoId}")
+  @ApiOperation(value = "Show the lock holders, waiters and wait and hold times for a repo")
+  public Map<String, Object> getLockStatus(@PathParam("repoId") String repoId)
+      throws RepoNotFoundException {
+    return repoFactory.getLockStatus(repoId);
+  }
+
   @Override
   public String checkDockerVersion() {
     try {
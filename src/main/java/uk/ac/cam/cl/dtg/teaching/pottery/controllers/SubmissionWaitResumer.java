@@ -0,0 +1,53 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+
+/**
+ * Threads for writing out responses to clients waiting on a submission. Resuming an AsyncResponse
+ * writes the response on the calling thread so we do it here rather than on the thread updating
+ * the submission.
+ */
+public class SubmissionWaitResumer implements Stoppable {
+
+  private static final int THREADS = 2;
+
+  private final ExecutorService executor =
+      Executors.newFixedThreadPool(
+          THREADS,
+          new ThreadFactoryBuilder()
+              .setNameFormat("submission-wait-resume-%d")
+              .setDaemon(true)
+              .build());
+
+  /** Resume the given response with the given result on one of our threads. */
+  public void resume(AsyncResponse asyncResponse, Response response) {
+    executor.execute(() -> asyncResponse.resume(response));
+  }
+
+  @Override
+  public void stop() {
+    executor.shutdownNow();
+  }
+}
@@ -18,7 +18,25 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import com.google.inject.Inject;
+import com.wordnik.swagger.annotations.ApiOperation;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Named;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
@@ -28,8 +46,10 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.LiveStepOutput;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 public class SubmissionsController
@@ -37,20 +57,39 @@ public class SubmissionsController
 
   protected static final Logger LOG = LoggerFactory.getLogger(SubmissionsController.class);
 
+  /** Default time to wait for a submission to change. */
+  private static final int DEFAULT_WAIT_SECONDS = 30;
+
+  /** Longest time we let a client wait for a submission to change. */
+  private static final int MAX_WAIT_SECONDS = 120;
+
+  /** How long to wait for more output from a running step before checking again. */
+  private static final long LIVE_OUTPUT_POLL_MILLIS = 10000;
+
   private Worker worker;
 
   private Database database;
 
   private RepoFactory repoFactory;
 
+  private TaskIndex taskIndex;
+
+  private SubmissionWaitResumer resumer;
+
   /** Create a new SubmissionController. */
   @Inject
   public SubmissionsController(
-      @Named(Repo.GENERAL_WORKER) Worker worker, Database database, RepoFactory repoFactory) {
+      @Named(Repo.GENERAL_WORKER) Worker worker,
+      Database database,
+      RepoFactory repoFactory,
+      TaskIndex taskIndex,
+      SubmissionWaitResumer resumer) {
     super();
     this.worker = worker;
     this.database = database;
     this.repoFactory = repoFactory;
+    this.taskIndex = taskIndex;
+    this.resumer = resumer;
   }
 
   @Override
@@ -58,7 +97,7 @@ public class SubmissionsController
       throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
           RepoNotFoundException {
     Repo r = repoFactory.getInstance(repoId);
-    return r.scheduleSubmission(tag, action, worker, database);
+    return r.scheduleSubmission(tag, action, worker, database, taskIndex);
   }
 
   @Override
@@ -68,10 +107,134 @@ public class SubmissionsController
     return repoFactory.getInstance(repoId).getSubmission(tag, action, database);
   }
 
+  /**
+   * Long-poll for changes to a submission. The response carries the submission's version as its
+   * ETag. Send that back in If-None-Match and the request waits until the submission changes again
+   * (or the timeout passes, in which case the response is 304 Not Modified). The wait doesn't hold
+   * a request thread.
+   */
+  @GET
+  @Produces("application/json")
+  @Path("/{repoId}/{tag}/{action}/wait")
+  @ApiOperation(
+      value = "Wait for a submission to change",
+      notes =
+          "Send the ETag of the last response in If-None-Match to wait for the next change. "
+              + "Returns 304 if nothing changes within timeoutSeconds (1 to 120).")
+  public void waitForSubmission(
+      @PathParam("repoId") String repoId,
+      @PathParam("tag") String tag,
+      @PathParam("action") String action,
+      @QueryParam("timeoutSeconds") Integer timeoutSecondsInteger,
+      @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+      @Suspended AsyncResponse asyncResponse)
+      throws SubmissionNotFoundException, RepoStorageException, SubmissionStorageException,
+          RepoNotFoundException {
+    Repo repo = repoFactory.getInstance(repoId);
+    long sinceVersion = parseVersion(ifNoneMatch);
+    // JAX-RS treats a timeout of zero or less as waiting forever so never ask for that
+    int timeoutSeconds =
+        Math.max(
+            1,
+            Math.min(
+                timeoutSecondsInteger == null ? DEFAULT_WAIT_SECONDS : timeoutSecondsInteger,
+                MAX_WAIT_SECONDS));
+    Repo.SubmissionListener listener =
+        (submission, version) ->
+            resumer.resume(
+                asyncResponse,
+                Response.ok(submission).tag(new EntityTag(String.valueOf(version))).build());
+    asyncResponse.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+    asyncResponse.setTimeoutHandler(
+        r -> {
+          repo.unwatchSubmission(tag, action, listener);
+          r.resume(Response.notModified(new EntityTag(String.valueOf(sinceVersion))).build());
+        });
+    repo.watchSubmission(tag, action, sinceVersion, listener, database);
+  }
+
+  /** Read the version out of an If-None-Match header. Returns -1 if there isn't one. */
+  private static long parseVersion(String ifNoneMatch) {
+    if (ifNoneMatch == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(ifNoneMatch.replace("W/", "").replace("\"", "").trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   @Override
   public String getOutput(String repoId, String tag, String action, String step)
       throws SubmissionNotFoundException, RepoStorageException, SubmissionStorageException,
           RepoNotFoundException {
     return repoFactory.getInstance(repoId).getSubmissionOutput(tag, action, step, database);
   }
+
+  /**
+   * Stream the output of a step as it runs, as server-sent events. Each event carries the next
+   * piece of output so the output is all the event data joined together. Each reader has a bounded
+   * buffer so if the client reads too slowly then some output is skipped (and a marker is written
+   * in its place) rather than holding up the container. If nothing arrives for a while then a
+   * comment is sent as a heartbeat, so that a client which has gone away is noticed and its reader
+   * is closed without waiting for the step to finish. If the step has already finished then its
+   * output is sent as a single event.
+   */
+  @GET
+  @Produces("text/event-stream; charset=utf-8")
+  @Path("/{repoId}/{tag}/{action}/output/{step}/live")
+  @ApiOperation(
+      value = "Stream the output of a step whilst it runs",
+      notes = "Server-sent events. The response ends when the step finishes.")
+  public Response getLiveOutput(
+      @PathParam("repoId") String repoId,
+      @PathParam("tag") String tag,
+      @PathParam("action") String action,
+      @PathParam("step") String step)
+      throws SubmissionNotFoundException, RepoStorageException, SubmissionStorageException,
+          RepoNotFoundException {
+    Repo repo = repoFactory.getInstance(repoId);
+    LiveStepOutput liveStepOutput = repo.getLiveStepOutput(tag, action, step);
+    if (liveStepOutput == null) {
+      String finishedOutput = repo.getSubmissionOutput(tag, action, step, database);
+      StreamingOutput s =
+          output -> {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            writeEvent(writer, finishedOutput == null ? "" : finishedOutput);
+            writer.flush();
+          };
+      return Response.ok(s).build();
+    }
+    LiveStepOutput.Reader reader = liveStepOutput.subscribe();
+    StreamingOutput s =
+        output -> {
+          try (LiveStepOutput.Reader r = reader) {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            String chunk;
+            while ((chunk = r.next(LIVE_OUTPUT_POLL_MILLIS)) != null) {
+              if (chunk.isEmpty()) {
+                // Fails once the client has gone, which ends the loop and closes the reader
+                writer.write(":\n\n");
+              } else {
+                writeEvent(writer, chunk);
+              }
+              writer.flush();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        };
+    return Response.ok(s).build();
+  }
+
+  /** Write a server-sent event whose data is the given text. */
+  private static void writeEvent(Writer writer, String data) throws IOException {
+    for (String line : data.split("\n", -1)) {
+      writer.write("data: ");
+      writer.write(line);
+      writer.write("\n");
+    }
+    writer.write("\n");
+  }
 }
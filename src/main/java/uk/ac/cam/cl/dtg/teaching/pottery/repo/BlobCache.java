@@ -0,0 +1,75 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Cache of file contents read from repos, shared between all repos.
+ *
+ * <p>Everything here is keyed by git object ids. Objects in git are immutable so entries never need
+ * invalidating, they just get evicted when the cache is full.
+ */
+class BlobCache {
+
+  /** Total size of blob contents to hold in memory. */
+  private static final long MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+
+  /** Number of (commit, path) to blob id mappings to remember. */
+  private static final long MAX_PATH_ENTRIES = 100000;
+
+  private final Cache<ObjectId, byte[]> blobs =
+      CacheBuilder.newBuilder()
+          .maximumWeight(MAX_TOTAL_BYTES)
+          .weigher((Weigher<ObjectId, byte[]>) (blobId, contents) -> contents.length)
+          .build();
+
+  private final Cache<String, ObjectId> paths =
+      CacheBuilder.newBuilder().maximumSize(MAX_PATH_ENTRIES).build();
+
+  /** Return the contents of this blob or null if it's not in the cache. */
+  byte[] getBlob(AnyObjectId blobId) {
+    return blobs.getIfPresent(blobId.toObjectId());
+  }
+
+  void putBlob(AnyObjectId blobId, byte[] contents) {
+    if (contents.length <= Repo.MAX_IN_MEMORY_FILE_BYTES) {
+      blobs.put(blobId.toObjectId(), contents);
+    }
+  }
+
+  /**
+   * Return the blob id of the file at this path in the given commit (or tag object) or null if its
+   * not in the cache.
+   */
+  ObjectId getBlobId(AnyObjectId commitId, String path) {
+    return paths.getIfPresent(getPathKey(commitId, path));
+  }
+
+  void putBlobId(AnyObjectId commitId, String path, ObjectId blobId) {
+    paths.put(getPathKey(commitId, path), blobId);
+  }
+
+  private static String getPathKey(AnyObjectId commitId, String path) {
+    return commitId.getName() + ":" + path;
+  }
+}
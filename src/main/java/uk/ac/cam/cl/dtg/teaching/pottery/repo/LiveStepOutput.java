@@ -0,0 +1,139 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The output of a step which is still running, passed on to any number of readers as it arrives.
+ *
+ * <p>The container is never made to wait for a reader. Each reader has its own bounded buffer and
+ * if a reader falls behind then output is dropped for that reader only and a marker is put in its
+ * place. A reader who joins part way through starts with the most recent output.
+ */
+public class LiveStepOutput {
+
+  /** Maximum number of characters waiting to be read by each reader. */
+  private static final int MAX_READER_BUFFER_CHARS = 64 * 1024;
+
+  /** Number of characters of recent output to give to a new reader. */
+  private static final int MAX_HISTORY_CHARS = 16 * 1024;
+
+  /** Put in place of output which was dropped. */
+  static final String SKIPPED_MARKER = "\n[... output skipped ...]\n";
+
+  // All fields here, and in each Reader, are guarded by this object's monitor.
+  private final StringBuilder history = new StringBuilder();
+  private boolean historyTruncated = false;
+  private final List<Reader> readers = new ArrayList<>();
+  private boolean finished = false;
+
+  /** Pass on some more output from the step. */
+  synchronized void append(String chunk) {
+    if (finished || chunk.isEmpty()) {
+      return;
+    }
+    history.append(chunk);
+    if (history.length() > MAX_HISTORY_CHARS) {
+      history.delete(0, history.length() - MAX_HISTORY_CHARS);
+      historyTruncated = true;
+    }
+    for (Reader reader : readers) {
+      reader.offer(chunk);
+    }
+    notifyAll();
+  }
+
+  /** Mark the step as finished. Readers get whatever they still have buffered and then stop. */
+  synchronized void finish() {
+    finished = true;
+    readers.clear();
+    notifyAll();
+  }
+
+  /** Start reading the output. Close the reader when done with it (use try with resources). */
+  public synchronized Reader subscribe() {
+    Reader reader = new Reader();
+    if (historyTruncated) {
+      reader.offer(SKIPPED_MARKER);
+    }
+    reader.offer(history.toString());
+    if (!finished) {
+      readers.add(reader);
+    }
+    return reader;
+  }
+
+  /** A single reader of the output. */
+  public class Reader implements AutoCloseable {
+
+    private final ArrayDeque<String> chunks = new ArrayDeque<>();
+    private int bufferedChars = 0;
+    private boolean skipping = false;
+
+    private void offer(String chunk) {
+      if (chunk.isEmpty()) {
+        return;
+      }
+      if (bufferedChars + chunk.length() > MAX_READER_BUFFER_CHARS) {
+        if (!skipping) {
+          chunks.add(SKIPPED_MARKER);
+          bufferedChars += SKIPPED_MARKER.length();
+          skipping = true;
+        }
+        return;
+      }
+      chunks.add(chunk);
+      bufferedChars += chunk.length();
+      skipping = false;
+    }
+
+    /**
+     * Return the next piece of output. Returns an empty string if nothing arrives within the
+     * timeout, and null once the step has finished and everything has been read.
+     */
+    public String next(long timeoutMillis) throws InterruptedException {
+      synchronized (LiveStepOutput.this) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (chunks.isEmpty() && !finished) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return "";
+          }
+          LiveStepOutput.this.wait(remaining);
+        }
+        String chunk = chunks.poll();
+        if (chunk != null) {
+          bufferedChars -= chunk.length();
+        }
+        return chunk;
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (LiveStepOutput.this) {
+        readers.remove(this);
+        chunks.clear();
+        bufferedChars = 0;
+      }
+    }
+  }
+}
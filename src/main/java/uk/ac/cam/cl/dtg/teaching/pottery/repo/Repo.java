@@ -18,17 +18,37 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
@@ -37,23 +57,48 @@ import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.dircache.InvalidPathException;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectIdSet;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.cam.cl.dtg.teaching.docker.ApiUnavailableException;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock;
 import uk.ac.cam.cl.dtg.teaching.pottery.FourLevelLock.AutoCloseableLock;
+import uk.ac.cam.cl.dtg.teaching.pottery.LockTimeoutException;
 import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerExecResponse;
@@ -69,6 +114,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.SubmissionStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.RepoInfoWithStatus;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.StepResult;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.ParameterisationResult;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
@@ -99,14 +145,34 @@ public class Repo {
   public static final String PARAMETERISATION_WORKER = "Parameterisation worker";
   public static final String GENERAL_WORKER = "General worker";
 
+  private static final String MASTER_REF = Constants.R_HEADS + Constants.MASTER;
+
+  /** How long to remember the head of a remote repo for. */
+  private static final long REMOTE_HEAD_SHA_TTL_MILLIS = 10000;
+
+  /** Files bigger than this are streamed rather than read into memory. */
+  public static final int MAX_IN_MEMORY_FILE_BYTES = 1024 * 1024;
+
   private volatile RepoInfo repoInfo;
   private volatile boolean ready = false;
 
-  /** The directory holding this repository. */
-  private final File repoDirectory;
+  /**
+   * Where the repo lives. This changes if the repo is moved out of memory-backed storage, which
+   * needs the full exclusion lock, so only use it whilst holding the repo lock.
+   */
+  private volatile File repoDirectory;
 
   private final File repoTestingDirectory;
 
+  /** Local bare mirror of the remote repo that testing checkouts are made from. */
+  private final File repoMirrorDirectory;
+
+  /** Where the bundle for this repo goes when it is archived. */
+  private final File repoArchiveFile;
+
+  /** Set whilst this repo is archived. Taking the lock restores the repo and clears this. */
+  private volatile boolean archived = false;
+
   private final String webtagPrefix;
 
   /**
@@ -116,19 +182,139 @@ public class Repo {
   private final Object lockFields = new Object();
 
   /** Protects access to the git repo and working directory. */
-  private final FourLevelLock lock = new FourLevelLock();
+  private final FourLevelLock lock;
+
+  /** Shared long-lived handles on the git repositories in repoDirectory. */
+  private final RepositoryHandleCache repositoryHandles;
+
+  /** Shared cache of file contents. */
+  private final BlobCache blobCache;
+
+  /** Shared cache of file listings. */
+  private final TreeListingCache treeListingCache;
+
+  /** Shared cache of finished submissions. */
+  private final SubmissionResultCache submissionResultCache;
+
+  /** Protects remoteHeadSha and remoteHeadShaTime. */
+  private final Object remoteHeadShaMutex = new Object();
+
+  /** The last SHA we saw for the master branch of the remote repo. */
+  private String remoteHeadSha;
+
+  /** When remoteHeadSha was looked up. */
+  private long remoteHeadShaTime;
+
+  /** Protects the cached tag list and tag counter below. */
+  private final Object tagCacheMutex = new Object();
+
+  /** The webtags in this repo, in numerical order. Null until first used. */
+  private ImmutableList<String> cachedTags = null;
+
+  /** The number to use for the next webtag. */
+  private int nextTagNumber;
+
+  /** The tag fingerprint (see getTagFingerprint) from when cachedTags was built. */
+  private String cachedTagsFingerprint;
+
+  /** Number of finished submissions to keep in memory for each repo. */
+  private static final int MAX_RECENT_SUBMISSIONS = 8;
 
   /**
-   * A map of submissions that have been tested. Keys are tag and an action separated by a comma.
-   * You can only have one per tag/action pair.
+   * A map of submissions that are being tested. Keys are tag and an action separated by a comma.
+   * You can only have one per tag/action pair. Submissions are moved to recentSubmissions once they
+   * have been stored in the database.
    */
   private final ConcurrentHashMap<String, Submission> activeSubmissions = new ConcurrentHashMap<>();
 
-  private Repo(RepoInfo repoInfo, RepoConfig c) {
+  /**
+   * The number of times each submission in activeSubmissions has been updated. Guarded by
+   * lockFields.
+   */
+  private final Map<String, Long> submissionVersions = new HashMap<>();
+
+  /**
+   * The most recently finished submissions, so that clients polling for a result don't all have
+   * to go to the database for it. Keyed in the same way as activeSubmissions.
+   */
+  private final Cache<String, FinishedSubmission> recentSubmissions =
+      CacheBuilder.newBuilder().maximumSize(MAX_RECENT_SUBMISSIONS).build();
+
+  /** A submission which has been stored in the database, and its final version. */
+  private static class FinishedSubmission {
+
+    private final Submission submission;
+    private final long version;
+
+    private FinishedSubmission(Submission submission, long version) {
+      this.submission = submission;
+      this.version = version;
+    }
+  }
+
+  /** Listeners waiting for the next update to each submission. Guarded by lockFields. */
+  private final Map<String, List<SubmissionListener>> submissionListeners = new HashMap<>();
+
+  /**
+   * Output of the steps which are running at the moment. Keys are the submission key and the step
+   * name separated by a comma.
+   */
+  private final ConcurrentHashMap<String, LiveStepOutput> liveStepOutputs =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Submissions which are waiting in the worker queue, keyed by action. Only used if
+   * supersedeQueuedSubmissions is set. Guarded by lockFields.
+   */
+  private final Map<String, QueuedSubmission> queuedSubmissions = new HashMap<>();
+
+  /** If true then scheduling a submission cancels the queued submission for the same action. */
+  private final boolean supersedeQueuedSubmissions;
+
+  /** A submission which has been scheduled but not started. */
+  private static class QueuedSubmission {
+
+    private final Submission.Builder builder;
+
+    /** Set if a newer submission has replaced this one. Guarded by lockFields. */
+    private boolean superseded = false;
+
+    private QueuedSubmission(Submission.Builder builder) {
+      this.builder = builder;
+    }
+  }
+
+  /** Callback for watchSubmission. */
+  public interface SubmissionListener {
+
+    /**
+     * Called with the latest state of the submission and its version.
+     *
+     * <p>This is called on whichever thread made the change, often a worker thread which is part
+     * way through testing a submission, so it should return quickly and hand off anything slow.
+     */
+    void updated(Submission submission, long version);
+  }
+
+  private Repo(
+      RepoInfo repoInfo,
+      RepoConfig c,
+      RepositoryHandleCache repositoryHandles,
+      BlobCache blobCache,
+      TreeListingCache treeListingCache,
+      SubmissionResultCache submissionResultCache) {
     this.repoInfo = repoInfo;
+    this.repositoryHandles = repositoryHandles;
+    this.blobCache = blobCache;
+    this.treeListingCache = treeListingCache;
+    this.submissionResultCache = submissionResultCache;
     this.repoDirectory = c.getRepoDir(repoInfo.getRepoId());
     this.repoTestingDirectory = c.getRepoTestingDir(repoInfo.getRepoId());
+    this.repoMirrorDirectory = c.getRepoMirrorDir(repoInfo.getRepoId());
+    this.repoArchiveFile = c.getRepoArchiveFile(repoInfo.getRepoId());
     this.webtagPrefix = c.getWebtagPrefix();
+    this.lock = new FourLevelLock(c.isRepoLockFair(), c.getRepoLockTimeoutMillis());
+    this.supersedeQueuedSubmissions = c.isSupersedeQueuedSubmissions();
   }
 
   /**
@@ -138,10 +324,21 @@ public class Repo {
    * @param repoId the ID of the repo to open
    * @param config server configuration
    * @param database database connection
+   * @param repositoryHandles cache of open git repositories
+   * @param blobCache cache of file contents
+   * @param treeListingCache cache of file listings
+   * @param submissionResultCache cache of finished submissions
    * @return a repo object for this repository
    * @throws RepoNotFoundException if the repository does not exist or if it can't be opened
    */
-  static Repo openRepo(String repoId, RepoConfig config, Database database)
+  static Repo openRepo(
+      String repoId,
+      RepoConfig config,
+      Database database,
+      RepositoryHandleCache repositoryHandles,
+      BlobCache blobCache,
+      TreeListingCache treeListingCache,
+      SubmissionResultCache submissionResultCache)
       throws RepoNotFoundException {
 
     File repoDirectory = config.getRepoDir(repoId);
@@ -152,7 +349,9 @@ public class Repo {
         if (r.getRemote().equals(RepoInfo.REMOTE_UNSET) && !repoDirectory.exists()) {
           throw new RepoNotFoundException("Failed to find repository directory " + repoDirectory);
         }
-        Repo repo = new Repo(r, config);
+        Repo repo =
+            new Repo(
+                r, config, repositoryHandles, blobCache, treeListingCache, submissionResultCache);
         if (repo.repoInfo.getExpiryDate() != null) {
           // Synchronize shouldn't be needed since we haven't given this to anyone yet, but being
           // consistent
@@ -176,8 +375,18 @@ public class Repo {
   /**
    * Create a new repository and return an appropriate repo object. Use RepoFactory rather than
    * calling this method directly.
+   *
+   * @param inMemory true to put a local repo in memory-backed storage rather than on disk
    */
-  static Repo createRepo(RepoInfo repoInfo, RepoConfig config, Database database)
+  static Repo createRepo(
+      RepoInfo repoInfo,
+      RepoConfig config,
+      Database database,
+      RepositoryHandleCache repositoryHandles,
+      BlobCache blobCache,
+      TreeListingCache treeListingCache,
+      SubmissionResultCache submissionResultCache,
+      boolean inMemory)
       throws RepoStorageException {
 
     if (repoInfo.isRemote()) {
@@ -193,7 +402,7 @@ public class Repo {
         throw new RepoStorageException("Failed to store repository details", e);
       }
     } else {
-      File repoDirectory = config.getRepoDir(repoInfo.getRepoId());
+      File repoDirectory = getNewRepoDir(repoInfo.getRepoId(), config, inMemory);
       try (FileUtil.AutoDelete createdDirectory = FileUtil.mkdirWithAutoDelete(repoDirectory)) {
         try {
           Git.init().setDirectory(repoDirectory).call().close();
@@ -211,7 +420,76 @@ public class Repo {
         throw new RepoStorageException("Failed to create repo directory", e);
       }
     }
-    return new Repo(repoInfo, config);
+    return new Repo(
+        repoInfo, config, repositoryHandles, blobCache, treeListingCache, submissionResultCache);
+  }
+
+  /**
+   * Create several new local repositories at once, storing their details in a single database
+   * transaction. Either all the repositories are created or none of them are. Use RepoFactory
+   * rather than calling this method directly.
+   *
+   * @param useMemoryStorage asked as each repo is created whether to put it in memory-backed
+   *     storage rather than on disk
+   */
+  static ImmutableList<Repo> createRepos(
+      List<RepoInfo> repoInfos,
+      RepoConfig config,
+      Database database,
+      RepositoryHandleCache repositoryHandles,
+      BlobCache blobCache,
+      TreeListingCache treeListingCache,
+      SubmissionResultCache submissionResultCache,
+      BooleanSupplier useMemoryStorage)
+      throws RepoStorageException {
+    List<FileUtil.AutoDelete> createdDirectories = new ArrayList<>();
+    try {
+      for (RepoInfo repoInfo : repoInfos) {
+        File repoDirectory =
+            getNewRepoDir(repoInfo.getRepoId(), config, useMemoryStorage.getAsBoolean());
+        createdDirectories.add(FileUtil.mkdirWithAutoDelete(repoDirectory));
+        try {
+          Git.init().setDirectory(repoDirectory).call().close();
+        } catch (GitAPIException e) {
+          throw new RepoStorageException("Failed to initialise git repository", e);
+        }
+      }
+      try (TransactionQueryRunner t = database.getQueryRunner()) {
+        for (RepoInfo repoInfo : repoInfos) {
+          RepoInfos.insert(repoInfo, t);
+        }
+        t.commit();
+      } catch (SQLException e) {
+        throw new RepoStorageException("Failed to store repository details", e);
+      }
+      createdDirectories.forEach(FileUtil.AutoDelete::persist);
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to create repo directory", e);
+    } finally {
+      for (FileUtil.AutoDelete createdDirectory : createdDirectories) {
+        try {
+          createdDirectory.close();
+        } catch (IOException e) {
+          LOG.warn("Failed to remove directory " + createdDirectory.getFile(), e);
+        }
+      }
+    }
+    ImmutableList.Builder<Repo> result = ImmutableList.builder();
+    for (RepoInfo repoInfo : repoInfos) {
+      result.add(
+          new Repo(
+              repoInfo,
+              config,
+              repositoryHandles,
+              blobCache,
+              treeListingCache,
+              submissionResultCache));
+    }
+    return result.build();
+  }
+
+  private static File getNewRepoDir(String repoId, RepoConfig config, boolean inMemory) {
+    return inMemory ? config.getRepoMemoryDir(repoId) : config.getRepoDir(repoId);
   }
 
   interface FileGetter {
@@ -222,17 +500,15 @@ public class Repo {
       throws RepoExpiredException, RepoStorageException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
         try {
           List<String> copiedFiles = getFiles.get();
           if (!copiedFiles.isEmpty()) {
-            for (String f : copiedFiles) {
-              git.add().addFilepattern(f).call();
-            }
-            git.commit().setMessage(message).call();
+            commitPaths(repository, copiedFiles, message);
           }
-        } catch (IOException | GitAPIException e) {
+        } catch (IOException e) {
           try {
             git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
             throw new RepoStorageException(
@@ -247,15 +523,45 @@ public class Repo {
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
-  /** Recursively copy all files from the given sourceLocation and add them to the repository. */
+  /**
+   * Recursively copy all files from the given sourceLocation and add them to the repository.
+   *
+   * <p>The repository is first linked to the task copy's shared object store. The inserter doesn't
+   * write objects which already exist in an alternate so the skeleton's blobs and trees aren't
+   * duplicated and only the commit itself is stored in this repo.
+   */
   public void copyAndCommitSkeletonFiles(TaskCopy task)
       throws RepoStorageException, RepoExpiredException {
+    try {
+      linkObjectStore(task.getSharedObjectStore());
+    } catch (IOException e) {
+      LOG.warn("Failed to link repo " + getRepoId() + " to shared objects. Storing a copy", e);
+    }
     commitFiles("Copied files", () -> task.copySkeleton(repoDirectory, repoInfo.getVariant()));
   }
 
+  /** Add the given git objects directory as an alternate object store for this repo. */
+  private void linkObjectStore(File objectStore) throws IOException, RepoStorageException {
+    File info = new File(new File(new File(repoDirectory, Constants.DOT_GIT), "objects"), "info");
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      FileUtil.mkdirIfNotExists(info);
+      try (FileOutputStream fos = new FileOutputStream(new File(info, "alternates"), true)) {
+        IOUtils.write(objectStore.getAbsolutePath() + "\n", fos, StandardCharsets.UTF_8);
+      }
+      // jgit only reads the alternates when opening the repository
+      releaseRepository();
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
   /** Parameterise this task. */
   public void doParameterisation(
       Worker w,
@@ -266,6 +572,10 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException {
     LOG.info("Doing parameterisation with " + c.getDetail().getParameterisation());
     if (c.getDetail().getParameterisation() != null) {
+      if (commitCachedParameterisation(c, database)) {
+        successCallback.run();
+        return;
+      }
       w.schedule(
           new Job() {
             @Override
@@ -287,7 +597,7 @@ public class Repo {
                   repoInfo.isUsingTestingVersion()
                       ? t.acquireTestingCopy()
                       : t.acquireRegisteredCopy()) {
-                try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
+                try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
                   response = containerManager.runParameterisation(c, repoDirectory, repoInfo);
                   if (response.status() != ContainerExecResponse.Status.COMPLETED) {
                     failureCallback.accept(
@@ -301,6 +611,15 @@ public class Repo {
                     if (parameterisationResult.getFiles() == null) {
                       throw new IOException("No files returned from parameterisation");
                     }
+                    try {
+                      c.cacheParameterisation(
+                          repoInfo.getVariant(),
+                          repoInfo.getMutationId(),
+                          parameterisationResult,
+                          repoDirectory);
+                    } catch (IOException e) {
+                      LOG.warn("Failed to cache parameterisation for repo " + getRepoId(), e);
+                    }
                     commitFiles("Parameterised files", parameterisationResult::getFiles);
 
                     saveProblemStatement(database, parameterisationResult.getProblemStatement());
@@ -313,6 +632,14 @@ public class Repo {
                   }
                 } catch (InterruptedException e) {
                   return STATUS_RETRY;
+                } catch (LockTimeoutException e) {
+                  LOG.error("Timed out waiting to parameterise repo " + getRepoId(), e);
+                  failureCallback.accept(e.getMessage());
+                  return STATUS_FAILED;
+                } catch (RepoStorageException e) {
+                  LOG.error("Failed to lock repo " + getRepoId() + " for parameterisation", e);
+                  failureCallback.accept(e.getMessage());
+                  return STATUS_FAILED;
                 }
               } catch (TaskNotFoundException | ApiUnavailableException e) {
                 LOG.error("doParameterisation failed due to exception", e);
@@ -335,6 +662,38 @@ public class Repo {
     }
   }
 
+  /**
+   * Commit the cached output of a previous run of the parameterisation generator for this variant
+   * and mutation, if there is one.
+   *
+   * @return true if cached output was found and committed
+   */
+  private boolean commitCachedParameterisation(TaskCopy c, Database database)
+      throws RepoStorageException, RepoExpiredException {
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      ParameterisationResult result;
+      try {
+        result =
+            c.copyCachedParameterisation(
+                repoInfo.getVariant(), repoInfo.getMutationId(), repoDirectory);
+      } catch (IOException e) {
+        LOG.warn("Failed to copy cached parameterisation into repo " + getRepoId(), e);
+        return false;
+      }
+      if (result == null) {
+        return false;
+      }
+      LOG.info("Using cached parameterisation for repo " + getRepoId());
+      commitFiles("Parameterised files", result::getFiles);
+      saveProblemStatement(database, result.getProblemStatement());
+      return true;
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
   private void saveProblemStatement(Database database, String problemStatement)
       throws RepoStorageException {
     synchronized (lockFields) {
@@ -387,11 +746,9 @@ public class Repo {
    */
   public Submission getSubmission(String tag, String action, Database database)
       throws SubmissionStorageException, SubmissionNotFoundException {
-    synchronized (lockFields) {
-      Submission s = activeSubmissions.get(getSubmissionKey(tag, action));
-      if (s != null) {
-        return s;
-      }
+    Submission recent = getActiveOrRecentSubmission(tag, action);
+    if (recent != null) {
+      return recent;
     }
     try (TransactionQueryRunner q = database.getQueryRunner()) {
       Submission s = Submissions.getByRepoIdAndTagAndAction(repoInfo.getRepoId(), tag, action, q);
@@ -408,9 +765,106 @@ public class Repo {
     }
   }
 
+  /**
+   * Wait for the submission for this tag and action to change from the version given.
+   *
+   * <p>Versions count the updates to a submission whilst it is tested in this repo object. Version
+   * 0 is a submission which we only know about from the database. If the submission is already at
+   * a different version then the listener is called straight away. Otherwise it is called by
+   * whoever makes the next update, which might be never for a finished submission, so callers
+   * should give up after a while and call unwatchSubmission.
+   *
+   * <p>The listener is never called whilst holding lockFields.
+   */
+  public void watchSubmission(
+      String tag, String action, long sinceVersion, SubmissionListener listener, Database db)
+      throws SubmissionNotFoundException, SubmissionStorageException {
+    String key = getSubmissionKey(tag, action);
+    Submission current;
+    long version;
+    synchronized (lockFields) {
+      current = activeSubmissions.get(key);
+      if (current != null) {
+        version = submissionVersions.getOrDefault(key, 0L);
+      } else {
+        FinishedSubmission finished = recentSubmissions.getIfPresent(key);
+        current = finished == null ? null : finished.submission;
+        version = finished == null ? 0 : finished.version;
+      }
+      if (version == sinceVersion) {
+        submissionListeners.computeIfAbsent(key, k -> new ArrayList<>()).add(listener);
+        return;
+      }
+    }
+    if (current != null) {
+      listener.updated(current, version);
+    } else {
+      listener.updated(getSubmission(tag, action, db), 0);
+    }
+  }
+
+  /** Stop waiting for the submission for this tag and action to change. */
+  public void unwatchSubmission(String tag, String action, SubmissionListener listener) {
+    String key = getSubmissionKey(tag, action);
+    synchronized (lockFields) {
+      List<SubmissionListener> listeners = submissionListeners.get(key);
+      if (listeners != null) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+          submissionListeners.remove(key);
+        }
+      }
+    }
+  }
+
   /** Internal method to update the submission. */
   private void updateSubmission(Submission s) {
-    activeSubmissions.put(getSubmissionKey(s.getTag(), s.getAction()), s);
+    String key = getSubmissionKey(s.getTag(), s.getAction());
+    long version;
+    List<SubmissionListener> listeners;
+    synchronized (lockFields) {
+      activeSubmissions.put(key, s);
+      version = submissionVersions.merge(key, 1L, Long::sum);
+      listeners = submissionListeners.remove(key);
+    }
+    if (listeners != null) {
+      for (SubmissionListener listener : listeners) {
+        listener.updated(s, version);
+      }
+    }
+  }
+
+  /**
+   * Move a submission which has been stored in the database out of activeSubmissions and into
+   * recentSubmissions. Does nothing if the submission has been updated since.
+   */
+  private void retireSubmission(Submission s) {
+    String key = getSubmissionKey(s.getTag(), s.getAction());
+    synchronized (lockFields) {
+      if (activeSubmissions.remove(key, s)) {
+        long version = submissionVersions.getOrDefault(key, 0L);
+        submissionVersions.remove(key);
+        recentSubmissions.put(key, new FinishedSubmission(s, version));
+      }
+    }
+  }
+
+  /** Return the submission from memory, or null if it's only in the database (or nowhere). */
+  private Submission getActiveOrRecentSubmission(String tag, String action) {
+    String key = getSubmissionKey(tag, action);
+    synchronized (lockFields) {
+      Submission s = activeSubmissions.get(key);
+      if (s != null) {
+        return s;
+      }
+      FinishedSubmission finished = recentSubmissions.getIfPresent(key);
+      return finished == null ? null : finished.submission;
+    }
+  }
+
+  /** Return the number of submissions for this repo which are being tested at the moment. */
+  public int getActiveSubmissionCount() {
+    return activeSubmissions.size();
   }
 
   /** Convenience method for updating a submission from a builder. */
@@ -422,14 +876,44 @@ public class Repo {
   /** Schedule a particular version of the repo for testing later. */
   public Submission scheduleSubmission(String tag, String action, Worker w, Database db)
       throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
+    return scheduleSubmission(tag, action, w, db, null);
+  }
+
+  /**
+   * Schedule a particular version of the repo for testing later.
+   *
+   * <p>If taskIndex is given and exactly the same files have already been tested successfully
+   * against the current task copy, with the same variant, action and mutation, then the earlier
+   * result is copied into the new submission straight away and nothing is scheduled.
+   *
+   * <p>If supersedeQueuedSubmissions is set in the config then any earlier submission for the same
+   * action which is still waiting to run is marked as failed and won't be tested.
+   */
+  public Submission scheduleSubmission(
+      String tag, String action, Worker w, Database db, TaskIndex taskIndex)
+      throws RepoExpiredException, SubmissionStorageException, RepoStorageException {
     throwIfRepoExpired();
 
     if (tag.equals("HEAD")) {
-      return scheduleSubmission(resolveHeadSha(), action, w, db);
+      return scheduleSubmission(resolveHeadSha(), action, w, db, taskIndex);
+    }
+
+    // Answer repeat requests for a tag before doing any work. We check again below whilst holding
+    // lockFields in case someone else schedules the same tag in the meantime.
+    try {
+      return getSubmission(tag, action, db);
+    } catch (SubmissionNotFoundException e) {
+      // Not scheduled yet
     }
 
+    ObjectId treeId = resolveTreeToTest(tag);
+    Submission previousResult =
+        treeId == null || taskIndex == null ? null : findPreviousResult(treeId, action, taskIndex);
+
     Submission currentSubmission;
     Submission.Builder builder;
+    QueuedSubmission queued;
+    Submission superseded = null;
     synchronized (lockFields) {
       // lock here to allow us to notice that there is no submission and start a new
       // one atomically.
@@ -441,8 +925,62 @@ public class Repo {
       }
 
       builder = Submission.builder(repoInfo.getRepoId(), tag, action);
-      currentSubmission = builder.build();
+      currentSubmission =
+          previousResult == null ? builder.build() : copyResult(previousResult, tag, action);
       updateSubmission(currentSubmission);
+
+      queued =
+          previousResult == null && supersedeQueuedSubmissions
+              ? new QueuedSubmission(builder)
+              : null;
+      if (queued != null) {
+        QueuedSubmission previous = queuedSubmissions.put(action, queued);
+        if (previous != null) {
+          previous.superseded = true;
+          superseded =
+              previous
+                  .builder
+                  .addErrorMessage("Superseded by a newer submission (" + tag + ")")
+                  .setStatus(Submission.STATUS_FAILED)
+                  .build();
+          updateSubmission(superseded);
+        }
+      }
+    }
+
+    if (superseded != null) {
+      try (TransactionQueryRunner q = db.getQueryRunner()) {
+        Submissions.insert(superseded, q);
+        q.commit();
+        retireSubmission(superseded);
+      } catch (SQLException e) {
+        // As for a job which fails to store its result, force an error message out to the user
+        LOG.warn("Failed to store superseded submission " + superseded.getTag(), e);
+        updateSubmission(
+            Submission.builder(repoInfo.getRepoId(), superseded.getTag(), action)
+                .addErrorMessage(
+                    "Superseded by a newer submission ("
+                        + tag
+                        + ") but failed to store this in the database: "
+                        + e.getMessage())
+                .setStatus(Submission.STATUS_FAILED));
+      }
+    }
+
+    if (previousResult != null) {
+      try (TransactionQueryRunner q = db.getQueryRunner()) {
+        Submissions.insert(currentSubmission, q);
+        q.commit();
+        retireSubmission(currentSubmission);
+      } catch (SQLException e) {
+        synchronized (lockFields) {
+          if (activeSubmissions.remove(getSubmissionKey(tag, action), currentSubmission)) {
+            submissionVersions.remove(getSubmissionKey(tag, action));
+          }
+        }
+        throw new SubmissionStorageException("Failed to store result in database", e);
+      }
+      return currentSubmission;
     }
 
     w.schedule(
@@ -453,6 +991,14 @@ public class Repo {
               RepoFactory repoFactory,
               ContainerManager containerManager,
               Database database) {
+            if (queued != null) {
+              synchronized (lockFields) {
+                if (queued.superseded) {
+                  return STATUS_OK;
+                }
+                queuedSubmissions.remove(action, queued);
+              }
+            }
             updateSubmission(builder.setStarted());
             Task t;
             try {
@@ -461,11 +1007,12 @@ public class Repo {
               updateSubmission(builder.addErrorMessage("Task no longer available"));
               return STATUS_FAILED;
             }
+            boolean retrying = false;
             try (TaskCopy c =
                 repoInfo.isUsingTestingVersion()
                     ? t.acquireTestingCopy()
                     : t.acquireRegisteredCopy()) {
-              try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
+              try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
                 try {
                   setVersionToTest(tag);
                 } catch (RepoStorageException e) {
@@ -541,9 +1088,20 @@ public class Repo {
 
                           @Override
                           public void startStep(String stepName) {
+                            liveStepOutputs.put(
+                                getLiveStepOutputKey(tag, action, stepName), new LiveStepOutput());
                             updateSubmission(builder.startStep(stepName));
                           }
 
+                          @Override
+                          public void stepOutput(String stepName, String output) {
+                            LiveStepOutput liveStepOutput =
+                                liveStepOutputs.get(getLiveStepOutputKey(tag, action, stepName));
+                            if (liveStepOutput != null) {
+                              liveStepOutput.append(output);
+                            }
+                          }
+
                           @Override
                           public void finishStep(
                               String stepName,
@@ -554,25 +1112,59 @@ public class Repo {
                             updateSubmission(
                                 builder.completeStep(
                                     stepName, status, msec, output, containerName));
+                            LiveStepOutput liveStepOutput =
+                                liveStepOutputs.remove(getLiveStepOutputKey(tag, action, stepName));
+                            if (liveStepOutput != null) {
+                              liveStepOutput.finish();
+                            }
                           }
                         });
                 builder.setStatus(
                     result == STATUS_OK ? Submission.STATUS_COMPLETE : Submission.STATUS_FAILED);
                 return result;
               } catch (InterruptedException e) {
+                retrying = true;
                 updateSubmission(
                     Submission.builder(repoInfo.getRepoId(), tag, action)
                         .addErrorMessage("Job was interrupted, retrying"));
                 return STATUS_RETRY;
+              } catch (LockTimeoutException e) {
+                LOG.warn("Timed out waiting to test repo " + getRepoId(), e);
+                updateSubmission(
+                    builder
+                        .addErrorMessage("Timed out waiting for the repository to become free")
+                        .setStatus(Submission.STATUS_FAILED));
+                return STATUS_FAILED;
+              } catch (RepoStorageException e) {
+                LOG.warn("Failed to lock repo " + getRepoId() + " for testing", e);
+                updateSubmission(
+                    builder
+                        .addErrorMessage("Failed to open the repository: " + e.getMessage())
+                        .setStatus(Submission.STATUS_FAILED));
+                return STATUS_FAILED;
               } catch (Exception e) {
                 builder.setStatus(Submission.STATUS_FAILED);
                 throw e;
               } finally {
+                finishLiveStepOutputs(tag, action);
                 Submission s = builder.build();
-                if (!s.isNeedsRetry()) {
+                boolean stored = false;
+                // A job which is going to be retried mustn't store its half-finished submission
+                // since the retry will store the same tag and action again.
+                if (!s.isNeedsRetry() && !retrying) {
                   try (TransactionQueryRunner q = database.getQueryRunner()) {
                     Submissions.insert(s, q);
                     q.commit();
+                    stored = true;
+                    if (treeId != null && Submission.STATUS_COMPLETE.equals(s.getStatus())) {
+                      submissionResultCache.put(
+                          treeId,
+                          c.getCopyId(),
+                          repoInfo.getVariant(),
+                          action,
+                          repoInfo.getMutationId(),
+                          s);
+                    }
                   } catch (SQLException e) {
                     // This shouldn't happen, but if it does then we'll force
                     // an error message out to the user
@@ -583,7 +1175,12 @@ public class Repo {
                     return STATUS_FAILED;
                   }
                 }
-                updateSubmission(s);
+                if (!retrying) {
+                  updateSubmission(s);
+                }
+                if (stored) {
+                  retireSubmission(s);
+                }
               }
             } catch (TaskNotFoundException e1) {
               updateSubmission(builder.addErrorMessage("Task no longer available"));
@@ -599,120 +1196,725 @@ public class Repo {
     return currentSubmission;
   }
 
-  /** Find the SHA hash for the head of the master branch. */
-  public String resolveHeadSha() throws RepoStorageException {
+  /**
+   * Find the tree to be tested for this tag so that we can look for earlier results. Returns null
+   * if we can't reuse results for this tag.
+   */
+  private ObjectId resolveTreeToTest(String tag) throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      return null;
+    }
     try {
-      return Git.lsRemoteRepository()
-          .setRemote(repoInfo.isRemote() ? repoInfo.getRemote() : repoDirectory.getPath())
-          .setHeads(true).call().stream()
-          .filter(ref -> ref.getName().equals("refs/heads/master"))
-          .map(Ref::getObjectId)
-          .map(ObjectId::getName)
-          .findFirst()
-          .orElseThrow(
-              () -> new RefNotFoundException("Failed to find reference named refs/heads/master"));
-    } catch (GitAPIException e) {
-      throw new RepoStorageException("Failed to resolve SHA1 for refs/heads/master", e);
+      return resolveTree(tag);
+    } catch (RepoTagNotFoundException e) {
+      return null;
     }
   }
 
-  private void throwIfRepoExpired() throws RepoExpiredException {
-    if (isExpired()) {
-      throw new RepoExpiredException(
-          "This repository expired at " + repoInfo.getExpiryDate() + " and is no longer editable");
+  /** Look for an earlier successful result from testing this tree against the current task. */
+  private Submission findPreviousResult(ObjectId treeId, String action, TaskIndex taskIndex) {
+    try {
+      Task t = taskIndex.getTask(repoInfo.getTaskId());
+      try (TaskCopy c =
+          repoInfo.isUsingTestingVersion() ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
+        return submissionResultCache.get(
+            treeId, c.getCopyId(), repoInfo.getVariant(), action, repoInfo.getMutationId());
+      }
+    } catch (TaskNotFoundException e) {
+      return null;
     }
   }
 
-  private void throwIfRemote() throws RepoStorageException {
-    if (repoInfo.isRemote()) {
-      throw new RepoStorageException(
-          "This repository is remote and so cannot be accessed locally.");
+  /** Make a finished submission for this tag with the same results as an earlier one. */
+  private Submission copyResult(Submission previous, String tag, String action) {
+    Submission.Builder builder = Submission.builder(repoInfo.getRepoId(), tag, action);
+    builder.setStarted();
+    for (StepResult step : previous.getSteps()) {
+      builder.startStep(step.getName());
+      builder.completeStep(
+          step.getName(),
+          step.getStatus(),
+          step.getMsec(),
+          step.getOutput(),
+          step.getContainerName());
     }
+    return builder.setStatus(previous.getStatus()).build();
   }
 
   /**
-   * Update the checkout of this repo that we use for testing to point to a new tag.
+   * Find the SHA hash for the head of the master branch.
    *
-   * @param tag the tag to update the test to point to
-   * @throws RepoStorageException if something goes wrong
+   * <p>For local repos we look this up directly in the ref database. For remote repos we have to
+   * ask the remote, so we remember the answer for a short time to avoid hammering it when there is
+   * a burst of submissions.
    */
-  private void setVersionToTest(String tag) throws RepoStorageException {
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      if (repoTestingDirectory.exists()) {
-        try {
-          FileUtil.deleteRecursive(repoTestingDirectory);
-        } catch (IOException e) {
-          throw new RepoStorageException("Failed to delete previous testing directory", e);
+  public String resolveHeadSha() throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      return resolveRemoteHeadSha();
+    }
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repository = openRepository()) {
+        Ref ref = repository.exactRef(MASTER_REF);
+        if (ref == null || ref.getObjectId() == null) {
+          throw new RepoStorageException(
+              "Failed to resolve SHA1 for " + MASTER_REF,
+              new RefNotFoundException("Failed to find reference named " + MASTER_REF));
         }
+        return ref.getObjectId().getName();
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to resolve SHA1 for " + MASTER_REF, e);
       }
-      if (!repoTestingDirectory.mkdirs()) {
-        throw new RepoStorageException("Failed to create directory for holding test checkout");
-      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
 
-      try (Git g =
-          Git.cloneRepository()
-              .setURI(repoInfo.isRemote() ? repoInfo.getRemote() : repoDirectory.getPath())
-              .setDirectory(repoTestingDirectory)
-              .call()) {
-        g.checkout().setName(tag).call();
+  private String resolveRemoteHeadSha() throws RepoStorageException {
+    synchronized (remoteHeadShaMutex) {
+      if (remoteHeadSha != null
+          && System.currentTimeMillis() - remoteHeadShaTime < REMOTE_HEAD_SHA_TTL_MILLIS) {
+        return remoteHeadSha;
+      }
+      try {
+        remoteHeadSha =
+            Git.lsRemoteRepository().setRemote(repoInfo.getRemote()).setHeads(true).call().stream()
+                .filter(ref -> ref.getName().equals(MASTER_REF))
+                .map(Ref::getObjectId)
+                .map(ObjectId::getName)
+                .findFirst()
+                .orElseThrow(
+                    () -> new RefNotFoundException("Failed to find reference named " + MASTER_REF));
+        remoteHeadShaTime = System.currentTimeMillis();
+        return remoteHeadSha;
       } catch (GitAPIException e) {
-        throw new RepoStorageException("Failed to clone repository", e);
-      } catch (JGitInternalException e) {
-        throw new RepoStorageException("Failed to clone repository", e.getCause());
+        throw new RepoStorageException("Failed to resolve SHA1 for " + MASTER_REF, e);
       }
-    } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
     }
   }
 
   /**
-   * Check if tag is defined in this repository.
+   * Repack and prune the git database if it has built up too many loose objects.
    *
-   * @param tag to check for
-   * @return true if tag exists
-   * @throws RepoStorageException if something goes wrong
+   * <p>The new pack is written whilst holding only the git database lock. Packs are deleted as soon
+   * as they are replaced, and JGit reopens pack files by name as it reads, so the full exclusion
+   * lock is taken afterwards just for deleting the old packs and the loose objects which are now
+   * packed.
+   *
+   * @param looseObjectThreshold only do anything if there are more loose objects than this
+   * @return true if the repository was repacked
    */
-  public boolean existsTag(String tag) throws RepoStorageException {
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        return git.getRepository().resolve(Constants.R_TAGS + tag) != null;
+  public boolean runMaintenance(long looseObjectThreshold) throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      return false;
+    }
+    LocalRepack localRepack;
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      if (estimateLooseObjects() <= looseObjectThreshold) {
+        return false;
+      }
+      try (Repository repository = openRepository()) {
+        localRepack = writeLocalPack(repository, readAlternates());
+      }
+      if (localRepack == null) {
+        return false;
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException(
+          "Failed to run maintenance on repository " + repoInfo.getRepoId(), e);
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+
+    try (AutoCloseableLock ignored = takeLock(lock::takeFullExclusionLock)) {
+      try (Repository repository = openRepository()) {
+        replacePacks(repository, localRepack);
+        return true;
       } catch (IOException e) {
         throw new RepoStorageException(
-            "Failed to lookup tag in repository " + repoInfo.getRepoId(), e);
+            "Failed to run maintenance on repository " + repoInfo.getRepoId(), e);
       }
     } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+      throw new RepoStorageException("Interrupted whilst waiting for full exclusion lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
-  /**
-   * List the files in this repo tagged with a particular tag.
-   *
-   * @param tag the tag of interest
-   * @return a list of file names relative to the root of the repository
+  /** A pack written by writeLocalPack and the names of the packs which it replaces. */
+  private static class LocalRepack {
+    private final String newPack;
+    private final ImmutableList<String> replacedPacks;
+
+    private LocalRepack(String newPack, ImmutableList<String> replacedPacks) {
+      this.newPack = newPack;
+      this.replacedPacks = replacedPacks;
+    }
+  }
+
+  /** Return the alternate object stores which this repo borrows objects from. */
+  private List<File> readAlternates() throws IOException {
+    File objects = new File(new File(repoDirectory, Constants.DOT_GIT), "objects");
+    File alternates = new File(new File(objects, "info"), "alternates");
+    if (!alternates.exists()) {
+      return ImmutableList.of();
+    }
+    List<File> result = new ArrayList<>();
+    for (String line : Files.readAllLines(alternates.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty() && !line.startsWith("#")) {
+        File alternate = new File(line.trim());
+        result.add(alternate.isAbsolute() ? alternate : new File(objects, line.trim()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Pack all the objects reachable from this repo's refs except for those in its alternate object
+   * stores, if it has any. jgit's gc has no equivalent of git repack --local and so would copy
+   * everything the repo borrows from the task's shared object store into its own pack, and it also
+   * deletes the old packs straight away. The existing packs are left in place for replacePacks to
+   * remove.
+   *
+   * @return the new pack and the packs it replaces, or null if the repo has no refs
+   */
+  private static LocalRepack writeLocalPack(Repository repository, List<File> alternates)
+      throws IOException {
+    Set<ObjectId> want = new HashSet<>();
+    for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+      if (!ref.isSymbolic() && ref.getObjectId() != null) {
+        want.add(ref.getObjectId());
+      }
+    }
+    if (want.isEmpty()) {
+      return null;
+    }
+    ObjectDirectory objectDatabase = (ObjectDirectory) repository.getObjectDatabase();
+    Collection<PackFile> oldPacks = objectDatabase.getPacks();
+    File packDir = objectDatabase.getPackDirectory();
+    String name;
+    try (PackWriter writer = new PackWriter(repository)) {
+      for (File alternate : alternates) {
+        for (ObjectIdSet objects : readObjectStore(alternate)) {
+          writer.excludeObjects(objects);
+        }
+      }
+      writer.preparePack(NullProgressMonitor.INSTANCE, want, Collections.emptySet());
+      name = "pack-" + writer.computeName().name();
+      File pack = new File(packDir, name + ".pack");
+      if (!pack.exists()) {
+        File tmpPack = new File(packDir, name + ".pack.tmp");
+        File tmpIndex = new File(packDir, name + ".idx.tmp");
+        try (OutputStream out = new FileOutputStream(tmpPack)) {
+          writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+        }
+        try (OutputStream out = new FileOutputStream(tmpIndex)) {
+          writer.writeIndex(out);
+        }
+        Files.move(tmpPack.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(
+            tmpIndex.toPath(),
+            new File(packDir, name + ".idx").toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+    ImmutableList.Builder<String> replaced = ImmutableList.builder();
+    for (PackFile oldPack : oldPacks) {
+      String oldName = getPackName(oldPack);
+      if (!oldName.equals(name)) {
+        replaced.add(oldName);
+      }
+    }
+    return new LocalRepack(name, replaced.build());
+  }
+
+  /**
+   * Delete the packs replaced by a pack from writeLocalPack and the loose objects it now contains.
+   * Call this whilst holding the full exclusion lock. Nothing is deleted if the new pack has gone,
+   * which happens if the repo was moved or restored from its archive in the meantime.
+   */
+  private static void replacePacks(Repository repository, LocalRepack localRepack)
+      throws IOException {
+    ObjectDirectory objectDatabase = (ObjectDirectory) repository.getObjectDatabase();
+    File packDir = objectDatabase.getPackDirectory();
+    if (!new File(packDir, localRepack.newPack + ".pack").exists()) {
+      return;
+    }
+    for (PackFile pack : objectDatabase.getPacks()) {
+      if (localRepack.replacedPacks.contains(getPackName(pack))) {
+        pack.close();
+      }
+    }
+    for (String name : localRepack.replacedPacks) {
+      for (String extension : new String[] {".pack", ".idx", ".bitmap"}) {
+        Files.deleteIfExists(new File(packDir, name + extension).toPath());
+      }
+    }
+    new GC((FileRepository) repository).prunePacked();
+  }
+
+  /** Return the name of a pack without its extension. */
+  private static String getPackName(PackFile pack) {
+    return pack.getPackFile().getName().replaceAll("\\.pack$", "");
+  }
+
+  /** Return sets covering the loose and packed objects in a git object store. */
+  private static List<ObjectIdSet> readObjectStore(File objectStore) throws IOException {
+    List<ObjectIdSet> result = new ArrayList<>();
+    Set<ObjectId> loose = new HashSet<>();
+    File[] fanOut = objectStore.listFiles();
+    if (fanOut != null) {
+      for (File dir : fanOut) {
+        String[] names = dir.getName().length() == 2 ? dir.list() : null;
+        if (names != null) {
+          for (String name : names) {
+            if (ObjectId.isId(dir.getName() + name)) {
+              loose.add(ObjectId.fromString(dir.getName() + name));
+            }
+          }
+        }
+      }
+    }
+    result.add(loose::contains);
+    File[] indexes = new File(objectStore, "pack").listFiles((d, n) -> n.endsWith(".idx"));
+    if (indexes != null) {
+      for (File index : indexes) {
+        result.add(PackIndex.open(index)::hasObject);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Pack this repo into a single git bundle in the archive directory and delete the working tree
+   * and testing checkout. Only expired local repos are archived. The repo is restored from the
+   * bundle the next time this object takes its lock, or by RepoFactory if it opens the repo
+   * afresh.
+   *
+   * @return true if the repo was archived
+   */
+  boolean archive() throws RepoStorageException {
+    if (repoInfo.isRemote() || !isExpired()) {
+      return false;
+    }
+    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
+      if (archived || !repoDirectory.exists()) {
+        return false;
+      }
+      File tmpFile = new File(repoArchiveFile.getParentFile(), repoArchiveFile.getName() + ".tmp");
+      try (Repository repository = openRepository()) {
+        BundleWriter writer = new BundleWriter(repository);
+        boolean empty = true;
+        for (Ref ref : repository.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+          if (!ref.isSymbolic() && ref.getObjectId() != null) {
+            writer.include(ref.getName(), ref.getObjectId());
+            empty = false;
+          }
+        }
+        if (empty) {
+          // Nothing was ever committed so there's nothing worth keeping a bundle for
+          return false;
+        }
+        FileUtil.mkdirIfNotExists(repoArchiveFile.getParentFile());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+          writer.writeBundle(NullProgressMonitor.INSTANCE, out);
+        }
+        Files.move(tmpFile.toPath(), repoArchiveFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        tmpFile.delete();
+        throw new RepoStorageException("Failed to archive repository " + repoInfo.getRepoId(), e);
+      }
+      archived = true;
+      releaseRepository();
+      try {
+        FileUtil.deleteRecursive(repoDirectory);
+        FileUtil.deleteRecursive(repoTestingDirectory);
+      } catch (IOException e) {
+        throw new RepoStorageException(
+            "Failed to delete archived repository " + repoInfo.getRepoId(), e);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for full exclusion lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /** Something which takes one of the levels of the repo lock. */
+  private interface LockTaker {
+    AutoCloseableLock take() throws InterruptedException, LockTimeoutException;
+  }
+
+  /**
+   * Take a lock on this repo. If the repo has been archived then it is restored first, so that
+   * callers which held on to this object from before it was archived can carry on using it.
+   * Archiving needs the full exclusion lock so once we hold the lock it stays restored until we
+   * release it.
+   */
+  private AutoCloseableLock takeLock(LockTaker taker)
+      throws InterruptedException, LockTimeoutException, RepoStorageException {
+    while (true) {
+      if (archived) {
+        restoreFromArchive();
+      }
+      AutoCloseableLock result = taker.take();
+      if (!archived) {
+        return result;
+      }
+      // Archived whilst we were waiting for the lock
+      result.close();
+    }
+  }
+
+  /** Unpack this repo from its archive back into its directory. */
+  private void restoreFromArchive()
+      throws InterruptedException, LockTimeoutException, RepoStorageException {
+    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
+      if (!archived) {
+        return;
+      }
+      if (!restoreArchive(repoInfo.getRepoId(), repoArchiveFile, repoDirectory)) {
+        throw new RepoStorageException(
+            "Failed to find the archive for repository " + repoInfo.getRepoId());
+      }
+      archived = false;
+      LOG.info("Restored repo {} from the archive", repoInfo.getRepoId());
+    }
+  }
+
+  /**
+   * Move this repo out of memory-backed storage into the given directory on disk. The testing
+   * checkout is always on disk and stays where it is. This object carries on working from the new
+   * location so anyone holding on to it (e.g. queued submissions) is unaffected.
+   *
+   * @return true if the repo was moved
+   */
+  boolean moveToDisk(File diskDirectory) throws RepoStorageException {
+    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
+      if (archived) {
+        return false;
+      }
+      releaseRepository();
+      if (!moveDirectoryToDisk(repoInfo.getRepoId(), repoDirectory, diskDirectory)) {
+        return false;
+      }
+      repoDirectory = diskDirectory;
+      return true;
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for full exclusion lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Move a repo's directory out of memory-backed storage onto disk. Use the moveToDisk method of
+   * the repo if it is loaded. Otherwise the caller must make sure nobody can load it meanwhile.
+   *
+   * @return true if the directory was moved
+   */
+  static boolean moveDirectoryToDisk(String repoId, File memoryDirectory, File diskDirectory)
+      throws RepoStorageException {
+    if (!memoryDirectory.exists() || memoryDirectory.equals(diskDirectory)) {
+      return false;
+    }
+    // Park the directory under another name first so that lookups never find a half deleted repo
+    File parked =
+        new File(memoryDirectory.getParentFile(), "." + memoryDirectory.getName() + ".moving");
+    try {
+      Files.move(memoryDirectory.toPath(), parked.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      FileUtil.mkdirIfNotExists(diskDirectory.getParentFile());
+      try (FileUtil.AutoDelete tmp =
+          FileUtil.tmpdirWithAutoDelete(diskDirectory.getParentFile())) {
+        FileUtil.copyDirectoryTree(parked, tmp.getFile());
+        Files.move(tmp.getFile().toPath(), diskDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        tmp.persist();
+      }
+    } catch (IOException e) {
+      if (parked.exists() && !memoryDirectory.exists()) {
+        if (!parked.renameTo(memoryDirectory)) {
+          LOG.error("Failed to put back repo {} after failing to move it", parked);
+        }
+      }
+      throw new RepoStorageException("Failed to move repository " + repoId + " to disk", e);
+    }
+    try {
+      FileUtil.deleteRecursive(parked);
+    } catch (IOException e) {
+      LOG.warn("Failed to delete " + parked + " after moving it to disk", e);
+    }
+    return true;
+  }
+
+  /**
+   * Unpack a repo archived by {@link #archive()} back into the repo directory. Use RepoFactory
+   * rather than calling this method directly.
+   *
+   * @return true if the repo was restored, false if there was no archive for it
+   */
+  static boolean restoreArchive(String repoId, RepoConfig config) throws RepoStorageException {
+    return restoreArchive(repoId, config.getRepoArchiveFile(repoId), config.getRepoDir(repoId));
+  }
+
+  private static boolean restoreArchive(String repoId, File archiveFile, File repoDirectory)
+      throws RepoStorageException {
+    if (repoDirectory.exists() || !archiveFile.exists()) {
+      return false;
+    }
+    try (FileUtil.AutoDelete createdDirectory = FileUtil.mkdirWithAutoDelete(repoDirectory)) {
+      try (Git git = Git.init().setDirectory(repoDirectory).call()) {
+        git.fetch()
+            .setRemote(archiveFile.getPath())
+            .setRefSpecs(
+                new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+                new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+            .call();
+        git.reset().setMode(ResetType.HARD).call();
+      } catch (GitAPIException | JGitInternalException e) {
+        throw new RepoStorageException("Failed to restore repository " + repoId, e);
+      }
+      createdDirectory.persist();
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to create directory for restored repository", e);
+    }
+    if (!archiveFile.delete()) {
+      LOG.warn("Failed to delete archive {} after restoring it", archiveFile);
+    }
+    return true;
+  }
+
+  /**
+   * Estimate the number of loose objects in the git database. Like git gc --auto we count the
+   * objects in one of the 256 fan-out directories and scale up.
+   */
+  private long estimateLooseObjects() {
+    File objects = new File(new File(repoDirectory, Constants.DOT_GIT), "objects");
+    String[] sample = new File(objects, "17").list();
+    return sample == null ? 0 : sample.length * 256L;
+  }
+
+  /**
+   * Open the git repository for this repo. The handle is shared with other users so the caller
+   * should close it as soon as they are finished (use try with resources).
+   */
+  private Repository openRepository() throws IOException {
+    return repositoryHandles.acquire(repoDirectory);
+  }
+
+  /** Close any cached git handles for this repo. */
+  void releaseRepository() {
+    repositoryHandles.release(repoDirectory);
+  }
+
+  private void throwIfRepoExpired() throws RepoExpiredException {
+    if (isExpired()) {
+      // Nobody should be writing to this repo anymore so there's no point keeping it open
+      releaseRepository();
+      throw new RepoExpiredException(
+          "This repository expired at " + repoInfo.getExpiryDate() + " and is no longer editable");
+    }
+  }
+
+  private void throwIfRemote() throws RepoStorageException {
+    if (repoInfo.isRemote()) {
+      throw new RepoStorageException(
+          "This repository is remote and so cannot be accessed locally.");
+    }
+  }
+
+  /**
+   * Update the checkout of this repo that we use for testing to point to a new tag.
+   *
+   * <p>If there is already a testing checkout then we fetch the new revisions into it and reset it
+   * to the tag. This only touches the paths which have changed. If that fails for any reason (e.g.
+   * the checkout is corrupted) then we fall back to deleting it and making a fresh clone.
+   *
+   * <p>For remote repos we first fetch any new commits into a local mirror and then work from
+   * that, so only new commits are transferred over the network.
+   *
+   * @param tag the tag to update the test to point to
+   * @throws RepoStorageException if something goes wrong
+   */
+  private void setVersionToTest(String tag) throws RepoStorageException {
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      if (repoInfo.isRemote()) {
+        updateMirror();
+      }
+      if (repoTestingDirectory.exists()) {
+        try {
+          updateTestingCheckout(tag);
+          return;
+        } catch (IOException
+            | GitAPIException
+            | JGitInternalException
+            | RevisionSyntaxException e) {
+          LOG.warn(
+              "Failed to update testing checkout for repo "
+                  + repoInfo.getRepoId()
+                  + ". Making a fresh clone instead",
+              e);
+        }
+      }
+      cloneTestingCheckout(tag);
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /** Move the existing testing checkout to the given tag, discarding anything left behind. */
+  private void updateTestingCheckout(String tag) throws IOException, GitAPIException {
+    try (Git g = Git.open(repoTestingDirectory)) {
+      g.fetch()
+          .setRemote(getTestingSource())
+          .setRefSpecs(
+              new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + "origin/*"),
+              new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+          .call();
+      g.reset().setMode(ResetType.HARD).setRef(tag).call();
+      g.clean().setCleanDirectories(true).setIgnore(false).call();
+    }
+  }
+
+  /** Replace the testing checkout with a fresh clone at the given tag. */
+  private void cloneTestingCheckout(String tag) throws RepoStorageException {
+    if (repoTestingDirectory.exists()) {
+      try {
+        FileUtil.deleteRecursive(repoTestingDirectory);
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to delete previous testing directory", e);
+      }
+    }
+    if (!repoTestingDirectory.mkdirs()) {
+      throw new RepoStorageException("Failed to create directory for holding test checkout");
+    }
+
+    try (Git g =
+        Git.cloneRepository()
+            .setURI(getTestingSource())
+            .setDirectory(repoTestingDirectory)
+            .call()) {
+      g.checkout().setName(tag).call();
+    } catch (GitAPIException e) {
+      throw new RepoStorageException("Failed to clone repository", e);
+    } catch (JGitInternalException e) {
+      throw new RepoStorageException("Failed to clone repository", e.getCause());
+    }
+  }
+
+  /** The location that testing checkouts are cloned and fetched from. */
+  private String getTestingSource() {
+    return repoInfo.isRemote() ? repoMirrorDirectory.getPath() : repoDirectory.getPath();
+  }
+
+  /**
+   * Bring the local mirror of a remote repo up to date, creating it if it doesn't exist. If the
+   * mirror is damaged then we throw it away and fetch everything again.
+   */
+  private void updateMirror() throws RepoStorageException {
+    if (repoMirrorDirectory.exists()) {
+      try {
+        fetchIntoMirror();
+        return;
+      } catch (IOException | GitAPIException | JGitInternalException e) {
+        LOG.warn(
+            "Failed to update mirror for repo " + repoInfo.getRepoId() + ". Recreating it instead",
+            e);
+      }
+      try {
+        FileUtil.deleteRecursive(repoMirrorDirectory);
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to delete previous mirror", e);
+      }
+    }
+    try {
+      FileUtil.mkdirIfNotExists(repoMirrorDirectory.getParentFile());
+      try (FileUtil.AutoDelete tmp =
+          FileUtil.tmpdirWithAutoDelete(repoMirrorDirectory.getParentFile())) {
+        Git.init().setBare(true).setDirectory(tmp.getFile()).call().close();
+        Files.move(
+            tmp.getFile().toPath(), repoMirrorDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        tmp.persist();
+      }
+      fetchIntoMirror();
+    } catch (IOException | GitAPIException e) {
+      throw new RepoStorageException("Failed to mirror remote repository", e);
+    } catch (JGitInternalException e) {
+      throw new RepoStorageException("Failed to mirror remote repository", e.getCause());
+    }
+  }
+
+  private void fetchIntoMirror() throws IOException, GitAPIException {
+    try (Git g = Git.open(repoMirrorDirectory)) {
+      g.fetch()
+          .setRemote(repoInfo.getRemote())
+          .setRefSpecs(
+              new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+              new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"))
+          .setRemoveDeletedRefs(true)
+          .call();
+    }
+  }
+
+  /**
+   * Check if tag is defined in this repository.
+   *
+   * @param tag to check for
+   * @return true if tag exists
+   * @throws RepoStorageException if something goes wrong
+   */
+  public boolean existsTag(String tag) throws RepoStorageException {
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repository = openRepository()) {
+        return repository.resolve(Constants.R_TAGS + tag) != null;
+      } catch (IOException e) {
+        throw new RepoStorageException(
+            "Failed to lookup tag in repository " + repoInfo.getRepoId(), e);
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * List the files in this repo tagged with a particular tag.
+   *
+   * @param tag the tag of interest
+   * @return a list of file names relative to the root of the repository
    */
   public ImmutableList<String> listFiles(String tag)
       throws RepoStorageException, RepoTagNotFoundException {
+    ObjectId treeId = resolveTree(tag);
+    return treeId == null ? ImmutableList.of() : listFiles(treeId);
+  }
+
+  /**
+   * Find the id of the git tree for a particular tag. The tree id changes if and only if the
+   * contents of the repo changes so it can be used as an ETag for listings.
+   *
+   * @param tag the tag of interest
+   * @return the id of the tree or null if the tag is HEAD and there are no commits yet
+   */
+  public ObjectId resolveTree(String tag) throws RepoStorageException, RepoTagNotFoundException {
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileReadingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository repo = git.getRepository();
+    // This only reads the git database so it doesn't need to wait for a test to finish with the
+    // working directory
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repo = openRepository()) {
         RevWalk revWalk = new RevWalk(repo);
-
         try {
-          ImmutableList.Builder<String> builder = ImmutableList.builder();
-          RevTree tree = getRevTree(tag, repo, revWalk);
-          try (TreeWalk treeWalk = new TreeWalk(repo)) {
-            treeWalk.addTree(tree);
-            treeWalk.setRecursive(true);
-            while (treeWalk.next()) {
-              builder.add(treeWalk.getPathString());
-            }
-          }
-          revWalk.dispose();
-          return builder.build();
+          return getRevTree(tag, repo, revWalk).copy();
         } catch (NoHeadInRepoException e) {
-          return ImmutableList.of();
+          return null;
+        } finally {
+          revWalk.dispose();
         }
       } catch (IOException e) {
         throw new RepoStorageException(
@@ -720,7 +1922,43 @@ public class Repo {
             e);
       }
     } catch (InterruptedException e) {
-      throw new RepoStorageException("Interrupted whilst waiting for file reading lock", e);
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * List the files in a git tree from this repo.
+   *
+   * @param treeId the id of the tree (from resolveTree)
+   * @return a list of file names relative to the root of the repository
+   */
+  public ImmutableList<String> listFiles(ObjectId treeId) throws RepoStorageException {
+    ImmutableList<String> cached = treeListingCache.get(treeId);
+    if (cached != null) {
+      return cached;
+    }
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repo = openRepository();
+          TreeWalk treeWalk = new TreeWalk(repo)) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        treeWalk.addTree(treeId);
+        treeWalk.setRecursive(true);
+        while (treeWalk.next()) {
+          builder.add(treeWalk.getPathString());
+        }
+        ImmutableList<String> result = builder.build();
+        treeListingCache.put(treeId, result);
+        return result;
+      } catch (IOException e) {
+        throw new RepoStorageException(
+            "Failed to list files in repository " + repoInfo.getRepoId(), e);
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
@@ -732,46 +1970,30 @@ public class Repo {
   public String createNewTag() throws RepoStorageException, RepoExpiredException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        List<Ref> tagList;
-        try {
-          tagList = git.tagList().call();
-        } catch (GitAPIException e) {
-          throw new RepoStorageException("Failed to list all tags in repo", e);
-        }
-
-        String prefix = Constants.R_TAGS + webtagPrefix;
-        int max = -1;
-        for (Ref tag : tagList) {
-          String tagName = tag.getName();
-          if (tagName.startsWith(prefix)) {
-            int value;
-            try {
-              value = Integer.parseInt(tagName.substring(prefix.length()));
-            } catch (NumberFormatException e) {
-              throw new RepoStorageException("Failed to parse tag name " + tagName, e);
-            }
-            if (value > max) {
-              max = value;
-            }
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
+        synchronized (tagCacheMutex) {
+          refreshTagCache(repository);
+          String newTag = webtagPrefix + String.format("%03d", nextTagNumber);
+          try {
+            git.tag().setName(newTag).call();
+          } catch (GitAPIException e) {
+            throw new RepoStorageException(
+                "Failed to apply tag " + newTag + " to repo " + repoInfo.getRepoId(), e);
           }
+          nextTagNumber++;
+          cachedTags = ImmutableList.<String>builder().addAll(cachedTags).add(newTag).build();
+          cachedTagsFingerprint = getTagFingerprint();
+          return newTag;
         }
-
-        String newTag = webtagPrefix + String.format("%03d", (max + 1));
-
-        try {
-          git.tag().setName(newTag).call();
-        } catch (GitAPIException e) {
-          throw new RepoStorageException(
-              "Failed to apply tag " + newTag + " to repo " + repoInfo.getRepoId(), e);
-        }
-        return newTag;
       } catch (IOException e) {
         throw new RepoStorageException("Failed to open repository " + repoInfo.getRepoId(), e);
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
@@ -783,18 +2005,75 @@ public class Repo {
    */
   public List<String> listTags() throws RepoStorageException {
     throwIfRemote();
-    String prefix = Constants.R_TAGS + webtagPrefix;
-    try (AutoCloseableLock ignored = lock.takeGitDbOpLock()) {
-      try (Git g = Git.open(repoDirectory)) {
-        return g.tagList().call().stream()
-            .filter(t -> t.getName().startsWith(prefix))
-            .map(t -> t.getName().substring(Constants.R_TAGS.length()))
-            .collect(Collectors.toList());
-      } catch (IOException | GitAPIException e) {
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repository = openRepository()) {
+        synchronized (tagCacheMutex) {
+          refreshTagCache(repository);
+          return cachedTags;
+        }
+      } catch (IOException e) {
         throw new RepoStorageException("Failed to get tag list", e);
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Rebuild the cached list of webtags and the next tag number if the tags in the git repo have
+   * changed since we last looked. You must hold tagCacheMutex to call this method.
+   *
+   * <p>Tags with the webtag prefix but without a number after it (e.g. pushed by hand) are listed
+   * after the numbered ones but don't affect the numbering.
+   */
+  private void refreshTagCache(Repository repository) throws IOException {
+    // Take the fingerprint before reading the refs so that a concurrent change causes a rebuild
+    // next time rather than being missed
+    String fingerprint = getTagFingerprint();
+    if (cachedTags != null && fingerprint.equals(cachedTagsFingerprint)) {
+      return;
+    }
+    TreeMap<Integer, String> tags = new TreeMap<>();
+    TreeSet<String> otherTags = new TreeSet<>();
+    for (String tagName : repository.getRefDatabase().getRefs(Constants.R_TAGS).keySet()) {
+      if (tagName.startsWith(webtagPrefix)) {
+        try {
+          tags.put(Integer.parseInt(tagName.substring(webtagPrefix.length())), tagName);
+        } catch (NumberFormatException e) {
+          otherTags.add(tagName);
+        }
+      }
+    }
+    cachedTags = ImmutableList.<String>builder().addAll(tags.values()).addAll(otherTags).build();
+    nextTagNumber = tags.isEmpty() ? 0 : tags.lastKey() + 1;
+    cachedTagsFingerprint = fingerprint;
+  }
+
+  /**
+   * Summarise the on-disk state of the tag refs without listing them. Creating or deleting a loose
+   * tag changes the modification time of the tags directory, and packing or deleting a packed tag
+   * rewrites the packed-refs file. Our own tags are added to the cache directly by createNewTag so
+   * this only needs to catch changes made by something else. We read the modification times at
+   * the filesystem's full resolution because File.lastModified can round them to the second.
+   */
+  private String getTagFingerprint() throws IOException {
+    File gitDir = new File(repoDirectory, Constants.DOT_GIT);
+    File packedRefs = new File(gitDir, Constants.PACKED_REFS);
+    return getModifiedTime(new File(gitDir, Constants.R_TAGS))
+        + ":"
+        + getModifiedTime(packedRefs)
+        + ":"
+        + packedRefs.length();
+  }
+
+  /** Return the modification time of the file, or an empty string if it doesn't exist. */
+  private static String getModifiedTime(File file) throws IOException {
+    try {
+      return Files.getLastModifiedTime(file.toPath()).toString();
+    } catch (NoSuchFileException e) {
+      return "";
     }
   }
 
@@ -810,10 +2089,10 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoTagNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFullExclusionLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository r = git.getRepository();
-        Ref tagRef = r.findRef(tag);
+    try (AutoCloseableLock ignored = takeLock(lock::takeFullExclusionLock)) {
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
+        Ref tagRef = repository.findRef(tag);
         if (tagRef == null) {
           throw new RepoTagNotFoundException(
               "Tag " + tag + " not found in repository " + repoInfo.getRepoId());
@@ -839,6 +2118,8 @@ public class Repo {
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for full exclusion lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
@@ -851,15 +2132,8 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      File f = new File(repoDirectory, fileName);
-      try {
-        if (!FileUtil.isParent(repoDirectory, f)) {
-          throw new RepoFileNotFoundException("Invalid fileName " + fileName);
-        }
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to perform security check on requested filename", e);
-      }
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      File f = getFileInRepo(fileName);
 
       if (!f.exists()) {
         throw new RepoFileNotFoundException("File does not exist");
@@ -869,11 +2143,15 @@ public class Repo {
         throw new RepoFileNotFoundException("File is a directory");
       }
 
-      try (Git git = Git.open(repoDirectory)) {
+      if (!f.delete()) {
+        throw new RepoStorageException("Failed to delete file " + fileName);
+      }
+
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
         try {
-          git.rm().addFilepattern(fileName).call();
-          git.commit().setMessage("Removing file: " + fileName).call();
-        } catch (GitAPIException e) {
+          commitPaths(repository, ImmutableList.of(fileName), "Removing file: " + fileName);
+        } catch (IOException e) {
           try {
             git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
             throw new RepoStorageException(
@@ -888,6 +2166,8 @@ public class Repo {
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
     }
   }
 
@@ -901,15 +2181,8 @@ public class Repo {
       throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
     throwIfRepoExpired();
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileWritingLock()) {
-      File f = new File(repoDirectory, fileName);
-      try {
-        if (!FileUtil.isParent(repoDirectory, f)) {
-          throw new RepoFileNotFoundException("Invalid fileName " + fileName);
-        }
-      } catch (IOException e) {
-        throw new RepoStorageException("Failed to perform security check on requested filename", e);
-      }
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      File f = getFileInRepo(fileName);
 
       if (f.isDirectory()) {
         throw new RepoFileNotFoundException("File already exists and is a directory");
@@ -927,11 +2200,11 @@ public class Repo {
       } catch (IOException e) {
         throw new RepoStorageException("Failed to write data to file " + fileName, e);
       }
-      try (Git git = Git.open(repoDirectory)) {
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
         try {
-          git.add().addFilepattern(fileName).call();
-          git.commit().setMessage("Updating file " + fileName).call();
-        } catch (GitAPIException e) {
+          commitPaths(repository, ImmutableList.of(fileName), "Updating file " + fileName);
+        } catch (IOException e) {
           try {
             git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
             throw new RepoStorageException(
@@ -946,30 +2219,286 @@ public class Repo {
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Apply a batch of file updates and deletions as a single commit.
+   *
+   * <p>All the changes are made whilst holding the file writing lock once and the index is only
+   * written once. Every filename is checked before anything is changed, and each may only be given
+   * once across both updates and deletes. If writing or committing the changes fails then the
+   * working tree is put back as it was at HEAD.
+   *
+   * @param updates map from filename (relative to the root of the repository) to new contents
+   * @param deletes filenames (relative to the root of the repository) to remove
+   */
+  public void updateFiles(Map<String, byte[]> updates, Collection<String> deletes)
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
+    throwIfRepoExpired();
+    throwIfRemote();
+    if (updates.isEmpty() && deletes.isEmpty()) {
+      return;
+    }
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileWritingLock)) {
+      for (String fileName : updates.keySet()) {
+        if (getFileInRepo(fileName).isDirectory()) {
+          throw new RepoFileNotFoundException(
+              "File " + fileName + " already exists and is a directory");
+        }
+      }
+      Set<String> seen = new HashSet<>(updates.keySet());
+      for (String fileName : deletes) {
+        if (!seen.add(fileName)) {
+          throw new RepoFileNotFoundException("File " + fileName + " is given more than once");
+        }
+        if (!getFileInRepo(fileName).isFile()) {
+          throw new RepoFileNotFoundException("File " + fileName + " does not exist");
+        }
+      }
+
+      List<String> paths =
+          ImmutableList.<String>builder().addAll(updates.keySet()).addAll(deletes).build();
+      try (Repository repository = openRepository();
+          Git git = new Git(repository)) {
+        // Files which didn't exist before are untracked as far as reset is concerned so we have
+        // to remove them ourselves if we roll back
+        List<File> createdFiles = new ArrayList<>();
+        try {
+          for (Map.Entry<String, byte[]> update : updates.entrySet()) {
+            File f = getFileInRepo(update.getKey());
+            if (!f.exists()) {
+              createdFiles.add(f);
+            }
+            FileUtil.mkdirIfNotExists(f.getParentFile());
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+              IOUtils.write(update.getValue(), fos);
+            }
+          }
+          for (String fileName : deletes) {
+            if (!getFileInRepo(fileName).delete()) {
+              throw new IOException("Failed to delete file " + fileName);
+            }
+          }
+          commitPaths(repository, paths, "Updating " + paths.size() + " files");
+        } catch (IOException e) {
+          try {
+            git.reset().setMode(ResetType.HARD).setRef(Constants.HEAD).call();
+            for (File f : createdFiles) {
+              if (f.exists() && !f.delete()) {
+                LOG.warn("Failed to remove {} whilst rolling back batch update", f);
+              }
+            }
+            throw new RepoStorageException("Failed to apply batch update. Rolled back", e);
+          } catch (GitAPIException e1) {
+            e1.addSuppressed(e);
+            throw new RepoStorageException("Failed to rollback failed batch update", e1);
+          }
+        }
+      } catch (IOException e) {
+        throw new RepoStorageException("Failed to open repository " + repoInfo.getRepoId(), e);
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for file writing lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Return the file in the working directory with this name, checking that it really is inside the
+   * repository and that it is a path which git can store. Paths into the .git directory are
+   * rejected.
+   */
+  private File getFileInRepo(String fileName)
+      throws RepoFileNotFoundException, RepoStorageException {
+    if (fileName.indexOf('\0') != -1) {
+      throw new RepoFileNotFoundException("Invalid fileName " + fileName);
+    }
+    for (String component : fileName.replace(File.separatorChar, '/').split("/", -1)) {
+      if (component.isEmpty()
+          || component.equals(".")
+          || component.equals("..")
+          || component.equalsIgnoreCase(Constants.DOT_GIT)) {
+        throw new RepoFileNotFoundException("Invalid fileName " + fileName);
+      }
+    }
+    File f = new File(repoDirectory, fileName);
+    try {
+      if (!FileUtil.isParent(repoDirectory, f) || f.equals(repoDirectory)) {
+        throw new RepoFileNotFoundException("Invalid fileName " + fileName);
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to perform security check on requested filename", e);
+    }
+    return f;
+  }
+
+  /**
+   * Commit the current working directory contents of the given paths. Directories are committed
+   * recursively and paths which no longer exist in the working directory are removed from the
+   * index.
+   *
+   * <p>Rather than calling git add for each path (which rescans the working tree and rewrites the
+   * index every time) we insert the blobs directly and apply all the index changes in one edit. The
+   * working tree is read in the same way as git add so symlinks are stored as links, core.fileMode
+   * is honoured and untracked files which are ignored are left out. Should be called whilst holding
+   * the file writing lock.
+   */
+  private void commitPaths(Repository repository, Collection<String> paths, String message)
+      throws IOException {
+    DirCache index = repository.lockDirCache();
+    try (ObjectInserter inserter = repository.newObjectInserter();
+        ObjectReader reader = repository.newObjectReader();
+        TreeWalk treeWalk = new TreeWalk(reader)) {
+      List<String> gitPaths = new ArrayList<>();
+      for (String path : paths) {
+        gitPaths.add(path.replace(File.separatorChar, '/'));
+      }
+      treeWalk.addTree(new DirCacheIterator(index));
+      FileTreeIterator workingTree = new FileTreeIterator(repository);
+      workingTree.setDirCacheIterator(treeWalk, 0);
+      treeWalk.addTree(workingTree);
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(PathFilterGroup.createFromStrings(gitPaths));
+
+      DirCacheEditor editor = index.editor();
+      while (treeWalk.next()) {
+        DirCacheIterator indexEntry = treeWalk.getTree(0, DirCacheIterator.class);
+        WorkingTreeIterator file = treeWalk.getTree(1, WorkingTreeIterator.class);
+        String gitPath = treeWalk.getPathString();
+        if (file == null) {
+          editor.add(new DirCacheEditor.DeletePath(gitPath));
+          continue;
+        }
+        if (indexEntry == null && file.isEntryIgnored()) {
+          continue;
+        }
+        if (indexEntry != null
+            && !file.isModified(indexEntry.getDirCacheEntry(), true, reader)) {
+          continue;
+        }
+        FileMode mode = file.getIndexFileMode(indexEntry);
+        long length = file.getEntryContentLength();
+        long lastModified = file.getEntryLastModified();
+        ObjectId objectId;
+        if (mode == FileMode.GITLINK) {
+          objectId = file.getEntryObjectId();
+        } else {
+          try (InputStream in = file.openEntryStream()) {
+            objectId = inserter.insert(Constants.OBJ_BLOB, length, in);
+          }
+        }
+        editor.add(
+            new DirCacheEditor.PathEdit(gitPath) {
+              @Override
+              public void apply(DirCacheEntry entry) {
+                entry.setFileMode(mode);
+                entry.setObjectId(objectId);
+                entry.setLength(length);
+                entry.setLastModified(lastModified);
+              }
+            });
+      }
+      editor.finish();
+
+      ObjectId headId = repository.resolve(Constants.HEAD);
+      PersonIdent ident = new PersonIdent(repository);
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(index.writeTree(inserter));
+      if (headId != null) {
+        commit.setParentId(headId);
+      }
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage(message);
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+
+      RefUpdate ru = repository.updateRef(Constants.HEAD);
+      ru.setNewObjectId(commitId);
+      ru.setExpectedOldObjectId(headId != null ? headId : ObjectId.zeroId());
+      ru.setRefLogMessage("commit: " + message, false);
+      RefUpdate.Result result = ru.update();
+      if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD) {
+        throw new IOException("Failed to update HEAD to new commit: " + result);
+      }
+      index.write();
+      index.commit();
+    } catch (InvalidPathException e) {
+      // jgit reports paths it can't store with an unchecked exception
+      throw new IOException("Cannot commit path: " + e.getMessage(), e);
+    } finally {
+      index.unlock();
     }
   }
 
   /**
-   * Read the contents of a particular file at a particular version.
+   * Read the contents of a particular file at a particular version. Files come from the blob cache
+   * and are read into memory so files bigger than MAX_IN_MEMORY_FILE_BYTES are refused. Use the
+   * streaming version of this method for files which might be large.
    *
    * @param tag the tag of the version to use or HEAD
    * @param fileName the filename relative to the root of the repository
-   * @return a StreamingOutput instance containing the data
+   * @return the contents of the file
+   * @throws RepoStorageException if the file is too big to read into memory
    */
   public byte[] readFile(String tag, String fileName)
       throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
+    ObjectId blobId = resolveFile(tag, fileName);
+    if (getBlobSize(blobId) > MAX_IN_MEMORY_FILE_BYTES) {
+      throw new RepoStorageException(
+          "File "
+              + fileName
+              + " is larger than "
+              + MAX_IN_MEMORY_FILE_BYTES
+              + " bytes and must be streamed");
+    }
+    return readBlob(blobId);
+  }
+
+  /**
+   * Write the contents of a particular file at a particular version to the given output without
+   * loading it all into memory.
+   *
+   * @param tag the tag of the version to use or HEAD
+   * @param fileName the filename relative to the root of the repository
+   * @param output where to write the contents of the file
+   */
+  public void readFile(String tag, String fileName, OutputStream output)
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException,
+          IOException {
+    writeBlob(resolveFile(tag, fileName), output, 0, -1);
+  }
+
+  /**
+   * Find the git blob holding a particular file at a particular version. The blob id changes if
+   * and only if the contents of the file changes so it can be used as an ETag.
+   *
+   * @param tag the tag of the version to use or HEAD
+   * @param fileName the filename relative to the root of the repository
+   * @return the id of the blob
+   */
+  public ObjectId resolveFile(String tag, String fileName)
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
     throwIfRemote();
-    try (AutoCloseableLock ignored = lock.takeFileReadingLock()) {
-      try (Git git = Git.open(repoDirectory)) {
-        Repository repo = git.getRepository();
-        RevWalk revWalk = new RevWalk(repo);
-        RevTree tree;
+    try (AutoCloseableLock ignored = takeLock(lock::takeFileReadingLock)) {
+      try (Repository repo = openRepository()) {
+        ObjectId commitId;
         try {
-          tree = getRevTree(tag, repo, revWalk);
+          commitId = resolveTag(tag, repo);
         } catch (NoHeadInRepoException e) {
           throw new IOException("File not found");
         }
+        ObjectId cachedBlobId = blobCache.getBlobId(commitId, fileName);
+        if (cachedBlobId != null) {
+          return cachedBlobId;
+        }
 
+        RevWalk revWalk = new RevWalk(repo);
+        RevTree tree = revWalk.parseCommit(commitId).getTree();
         try (TreeWalk treeWalk = new TreeWalk(repo)) {
           treeWalk.addTree(tree);
           treeWalk.setRecursive(true);
@@ -977,22 +2506,106 @@ public class Repo {
           if (!treeWalk.next()) {
             throw new IOException("File (" + fileName + ") not found");
           }
-
-          ObjectId objectId = treeWalk.getObjectId(0);
-          ObjectLoader loader = repo.open(objectId);
-          return loader.getBytes();
+          ObjectId blobId = treeWalk.getObjectId(0);
+          blobCache.putBlobId(commitId, fileName, blobId);
+          return blobId;
+        } finally {
+          revWalk.dispose();
         }
       } catch (IOException e) {
         throw new RepoFileNotFoundException("Failed to read file from repository", e);
       }
     } catch (InterruptedException e) {
       throw new RepoStorageException("Interrupted whilst waiting for file reading lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read the contents of a blob from this repository.
+   *
+   * @param blobId the id of the blob (from resolveFile)
+   * @return a copy of the contents of the blob which the caller is free to modify
+   */
+  public byte[] readBlob(ObjectId blobId) throws RepoStorageException, RepoFileNotFoundException {
+    byte[] cached = blobCache.getBlob(blobId);
+    if (cached != null) {
+      // The cached array is shared so callers mustn't be able to change it
+      return cached.clone();
+    }
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repo = openRepository()) {
+        byte[] contents = repo.open(blobId, Constants.OBJ_BLOB).getBytes();
+        blobCache.putBlob(blobId, contents);
+        return contents.clone();
+      } catch (IOException e) {
+        throw new RepoFileNotFoundException("Failed to read file from repository", e);
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Look up the size of a blob without loading it.
+   *
+   * @param blobId the id of the blob (from resolveFile)
+   * @return the size of the blob in bytes
+   */
+  public long getBlobSize(ObjectId blobId) throws RepoStorageException, RepoFileNotFoundException {
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock)) {
+      try (Repository repo = openRepository();
+          ObjectReader reader = repo.newObjectReader()) {
+        return reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+      } catch (IOException e) {
+        throw new RepoFileNotFoundException("Failed to read file from repository", e);
+      }
+    } catch (InterruptedException e) {
+      throw new RepoStorageException("Interrupted whilst waiting for git operation lock", e);
+    } catch (LockTimeoutException e) {
+      throw new RepoStorageException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Stream part of the contents of a blob to the given output without loading it all into memory.
+   * The data goes straight from the git object stream to the output whilst holding the git
+   * operation lock, since JGit reopens pack files by name as it reads and so they must not be
+   * repacked, archived or moved from under us. Readers, tests and file writes can all run
+   * alongside the git operation lock. Maintenance only needs the full exclusion lock for the short
+   * time it takes to delete the old packs.
+   *
+   * @param blobId the id of the blob (from resolveFile)
+   * @param output where to write the data
+   * @param offset number of bytes to skip from the start of the blob
+   * @param length number of bytes to write or -1 for all the remaining bytes
+   * @throws IOException if reading the blob or writing the output fails
+   */
+  public void writeBlob(ObjectId blobId, OutputStream output, long offset, long length)
+      throws IOException {
+    try (AutoCloseableLock ignored = takeLock(lock::takeGitDbOpLock);
+        Repository repo = openRepository();
+        InputStream in = repo.open(blobId, Constants.OBJ_BLOB).openStream()) {
+      IOUtils.copyLarge(in, output, offset, length);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted whilst waiting for git operation lock");
+    } catch (LockTimeoutException | RepoStorageException e) {
+      throw new IOException(e.getMessage(), e);
     }
   }
 
   private RevTree getRevTree(String tag, Repository repo, RevWalk revWalk)
       throws IOException, RepoStorageException, RepoTagNotFoundException {
-    RevTree tree;
+    RevCommit revCommit = revWalk.parseCommit(resolveTag(tag, repo));
+    return revCommit.getTree();
+  }
+
+  /** Find the object (commit or annotated tag) which the given tag or HEAD points to. */
+  private ObjectId resolveTag(String tag, Repository repo)
+      throws IOException, RepoStorageException, RepoTagNotFoundException {
     try {
       ObjectId tagId =
           repo.resolve(Constants.HEAD.equals(tag) ? Constants.HEAD : Constants.R_TAGS + tag);
@@ -1003,13 +2616,20 @@ public class Repo {
           throw new RepoTagNotFoundException("Failed to find tag " + tag);
         }
       }
-      RevCommit revCommit = revWalk.parseCommit(tagId);
-      tree = revCommit.getTree();
-
+      return tagId;
     } catch (RevisionSyntaxException e) {
       throw new RepoStorageException("Failed to load revision for head of repository", e);
     }
-    return tree;
+  }
+
+  /** Return true if anyone is holding or waiting for the lock on this repo. */
+  public boolean isLockInUse() {
+    return lock.isInUse();
+  }
+
+  /** Return the holders and waiters for the lock on this repo and its wait and hold times. */
+  public Map<String, Object> getLockStatus() {
+    return lock.getStatus();
   }
 
   public String getRepoId() {
@@ -1036,6 +2656,11 @@ public class Repo {
     return ready;
   }
 
+  /** Return true if something went wrong whilst creating this repo. */
+  boolean hasError() {
+    return repoInfo.getErrorMessage() != null;
+  }
+
   /** Return true if this repo has expired. */
   public boolean isExpired() {
     return repoInfo.getExpiryDate() != null && new Date().after(repoInfo.getExpiryDate());
@@ -1043,15 +2668,13 @@ public class Repo {
 
   public String getSubmissionOutput(String tag, String action, String step, Database database)
       throws SubmissionNotFoundException, SubmissionStorageException {
-    synchronized (lockFields) {
-      Submission s = activeSubmissions.get(getSubmissionKey(tag, action));
-      if (s != null) {
-        return s.getSteps().stream()
-            .filter(stepResult -> step.equals(stepResult.getName()))
-            .findFirst()
-            .orElseThrow(SubmissionNotFoundException::new)
-            .getOutput();
-      }
+    Submission recent = getActiveOrRecentSubmission(tag, action);
+    if (recent != null) {
+      return recent.getSteps().stream()
+          .filter(stepResult -> step.equals(stepResult.getName()))
+          .findFirst()
+          .orElseThrow(SubmissionNotFoundException::new)
+          .getOutput();
     }
     try (TransactionQueryRunner q = database.getQueryRunner()) {
       Submission s = Submissions.getByRepoIdAndTagAndAction(repoInfo.getRepoId(), tag, action, q);
@@ -1075,7 +2698,32 @@ public class Repo {
     }
   }
 
+  /**
+   * Return the output so far of a step which is running now, or null if the step isn't running.
+   * Once the step finishes its output is available from getSubmissionOutput.
+   */
+  public LiveStepOutput getLiveStepOutput(String tag, String action, String step) {
+    return liveStepOutputs.get(getLiveStepOutputKey(tag, action, step));
+  }
+
+  /** Finish any live output left over from steps of this submission. */
+  private void finishLiveStepOutputs(String tag, String action) {
+    String prefix = getSubmissionKey(tag, action) + ",";
+    for (Iterator<Map.Entry<String, LiveStepOutput>> it = liveStepOutputs.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, LiveStepOutput> entry = it.next();
+      if (entry.getKey().startsWith(prefix)) {
+        entry.getValue().finish();
+        it.remove();
+      }
+    }
+  }
+
   private static String getSubmissionKey(String tag, String action) {
     return tag + "," + action;
   }
+
+  private static String getLiveStepOutputKey(String tag, String action, String step) {
+    return getSubmissionKey(tag, action) + "," + step;
+  }
 }
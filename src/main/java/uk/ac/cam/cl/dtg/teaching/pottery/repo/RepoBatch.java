@@ -0,0 +1,93 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * A set of repos created together (e.g. for everyone taking an assessment). Initialisation of the
+ * repos is started a few at a time so that a large batch doesn't fill the worker queue ahead of
+ * everything else. Create these using RepoFactory.createBatch.
+ */
+public class RepoBatch {
+
+  private final String batchId;
+  private final ImmutableList<Repo> repos;
+  private final int maxParallel;
+
+  /** Starts the initialisation of a repo and calls the runnable when it has finished. */
+  private final BiConsumer<Repo, Runnable> initialiser;
+
+  /** Index of the next repo to initialise. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  RepoBatch(
+      String batchId,
+      ImmutableList<Repo> repos,
+      int maxParallel,
+      BiConsumer<Repo, Runnable> initialiser) {
+    this.batchId = batchId;
+    this.repos = repos;
+    this.maxParallel = Math.max(1, maxParallel);
+    this.initialiser = initialiser;
+  }
+
+  public String getBatchId() {
+    return batchId;
+  }
+
+  void start() {
+    for (int i = 0; i < maxParallel; i++) {
+      startNext();
+    }
+  }
+
+  private void startNext() {
+    int index = next.getAndIncrement();
+    if (index < repos.size()) {
+      initialiser.accept(repos.get(index), this::startNext);
+    }
+  }
+
+  /** Return the progress of this batch along with the ids of its repos (in order). */
+  public Map<String, Object> getStatus() {
+    int ready = 0;
+    int failed = 0;
+    ImmutableList.Builder<String> repoIds = ImmutableList.builder();
+    for (Repo repo : repos) {
+      repoIds.add(repo.getRepoId());
+      if (repo.hasError()) {
+        failed++;
+      } else if (repo.isReady()) {
+        ready++;
+      }
+    }
+    return ImmutableMap.<String, Object>builder()
+        .put("batchId", batchId)
+        .put("total", repos.size())
+        .put("ready", ready)
+        .put("failed", failed)
+        .put("pending", repos.size() - ready - failed)
+        .put("repoIds", repoIds.build())
+        .build();
+  }
+}
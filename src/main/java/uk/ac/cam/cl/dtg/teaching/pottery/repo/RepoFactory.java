@@ -17,44 +17,160 @@
  */
 package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.TransactionQueryRunner;
 import uk.ac.cam.cl.dtg.teaching.pottery.UuidGenerator;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.ShardedDirectories;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
 import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
 
 @Singleton
-public class RepoFactory {
+public class RepoFactory implements Stoppable {
+
+  /** Batches are forgotten if nobody has asked about them for this long. */
+  private static final int BATCH_RETENTION_HOURS = 24;
+
+  /**
+   * Once memory-backed storage goes over its limit we move repos to disk until usage is below this
+   * fraction of the limit, so that we aren't spilling again as soon as the next repo is created.
+   */
+  private static final double SPILL_TARGET_FRACTION = 0.75;
 
   /** This object is used to generate new uuids for repos. */
   private UuidGenerator uuidGenerator = new UuidGenerator();
 
   private Database database;
   private RepoConfig config;
+
+  /** Long-lived git handles shared by all the Repo objects. */
+  private final RepositoryHandleCache repositoryHandles = new RepositoryHandleCache();
+
+  /** File contents cache shared by all the Repo objects. */
+  private final BlobCache blobCache = new BlobCache();
+
+  /** File listing cache shared by all the Repo objects. */
+  private final TreeListingCache treeListingCache = new TreeListingCache();
+
+  /** Finished submissions shared by all the Repo objects. */
+  private final SubmissionResultCache submissionResultCache = new SubmissionResultCache();
+
+  /** Number of repos which have been unpacked from the archive. */
+  private final AtomicLong reposRestored = new AtomicLong();
+
+  /** File in the archive directory which holds the time of the last archiving pass. */
+  private static final String LAST_ARCHIVE_PASS_FILE = ".last-archive-pass";
+
+  /** Expired repos which were in use when we tried to archive them. */
+  private final Set<String> deferredArchiveRepoIds = ConcurrentHashMap.newKeySet();
+
+  /** How long to reuse a measurement of the memory-backed storage for. */
+  private static final long MEMORY_MEASURE_INTERVAL_MILLIS = 5000;
+
+  /** Protects memoryMeasuredBytes and memoryMeasuredTime. */
+  private final Object memoryMeasurementMutex = new Object();
+
+  /** Bytes used by repos in memory-backed storage when it was last measured. */
+  private long memoryMeasuredBytes;
+
+  /** When memoryMeasuredBytes was measured. */
+  private long memoryMeasuredTime;
+
+  /**
+   * Held whilst loading a repo into the cache and whilst moving its directory to the sharded
+   * layout, so that a repo is never opened from a directory which is about to move.
+   */
+  private final Striped<Lock> loadLocks = Striped.lock(64);
+
+  /** Batches of repos created by createBatch, kept so that clients can poll their progress. */
+  private final Cache<String, RepoBatch> batches =
+      CacheBuilder.newBuilder().expireAfterAccess(BATCH_RETENTION_HOURS, TimeUnit.HOURS).build();
+
   // We need to ensure that only one Repo object exists for any repoId so that
   // we guarantee mutual exclusion on the filesystem operations. So we cache created objects
   // here.
   private LoadingCache<String, Repo> cache =
       CacheBuilder.newBuilder()
           .softValues()
+          .removalListener(
+              (RemovalListener<String, Repo>)
+                  n -> {
+                    // Release the handle for the directory this instance was using, which might
+                    // not be where the repo is now. A collected value has nothing to release: its
+                    // handle is closed once it has been idle for long enough.
+                    if (n.getValue() != null) {
+                      n.getValue().releaseRepository();
+                    }
+                  })
           .build(
               new CacheLoader<String, Repo>() {
                 @Override
                 public Repo load(String key) throws Exception {
-                  return Repo.openRepo(key, config, database);
+                  Lock loadLock = loadLocks.get(key);
+                  loadLock.lock();
+                  try {
+                    if (Repo.restoreArchive(key, config)) {
+                      Repo.LOG.info("Restored repo " + key + " from the archive");
+                      reposRestored.incrementAndGet();
+                    }
+                    return Repo.openRepo(
+                        key,
+                        config,
+                        database,
+                        repositoryHandles,
+                        blobCache,
+                        treeListingCache,
+                        submissionResultCache);
+                  } finally {
+                    loadLock.unlock();
+                  }
                 }
               });
 
@@ -65,15 +181,23 @@ public class RepoFactory {
     this.config = config;
     FileUtil.mkdirIfNotExists(config.getRepoRoot());
     FileUtil.mkdirIfNotExists(config.getRepoTestingRoot());
-    for (File f : config.getRepoRoot().listFiles()) {
-      if (f.getName().startsWith(".")) {
-        continue;
-      }
-      String uuid = f.getName();
-      uuidGenerator.reserve(uuid);
+    FileUtil.mkdirIfNotExists(config.getRepoArchiveRoot());
+    FileUtil.mkdirIfNotExists(config.getRepoMirrorRoot());
+    if (config.getRepoMemoryRoot() != null) {
+      FileUtil.mkdirIfNotExists(config.getRepoMemoryRoot());
     }
   }
 
+  /**
+   * Check whether a candidate repoId is already used by a local or archived repo. We check the
+   * disk when generating ids rather than reserving every existing id at startup. Creating the repo
+   * directory fails if it exists and the database refuses duplicate ids for remote repos, so a
+   * race between this check and creation can't produce two repos with the same id.
+   */
+  boolean isRepoIdTaken(String repoId) {
+    return config.getRepoDir(repoId).exists() || config.getRepoArchiveFile(repoId).exists();
+  }
+
   /** Lookup a repo by its repoId, including those in the process of being created. */
   public Repo getInstanceIncludingCreating(String repoId)
       throws RepoStorageException, RepoNotFoundException {
@@ -113,7 +237,26 @@ public class RepoFactory {
       String remote,
       int mutationId)
       throws RepoStorageException, RepoNotFoundException {
-    final String newRepoId = uuidGenerator.generate();
+    return createInstance(
+        taskId, usingTestingVersion, expiryDate, variant, remote, mutationId, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Create a new repo for this task and return it. Local repos which will only be valid for a short
+   * time are put in memory-backed storage if it is configured and has room.
+   */
+  public Repo createInstance(
+      String taskId,
+      boolean usingTestingVersion,
+      Date expiryDate,
+      String variant,
+      String remote,
+      int mutationId,
+      int validityMinutes)
+      throws RepoStorageException, RepoNotFoundException {
+    final String newRepoId = uuidGenerator.generate(this::isRepoIdTaken);
+    final boolean inMemory =
+        remote.equals(RepoInfo.REMOTE_UNSET) && useMemoryStorage(validityMinutes);
     try {
       return cache.get(
           newRepoId,
@@ -130,7 +273,12 @@ public class RepoFactory {
                       mutationId,
                       null),
                   config,
-                  database));
+                  database,
+                  repositoryHandles,
+                  blobCache,
+                  treeListingCache,
+                  submissionResultCache,
+                  inMemory));
     } catch (ExecutionException e) {
       rethrowExecutionException(e);
       throw new Error(e);
@@ -140,6 +288,21 @@ public class RepoFactory {
   public void initialiseInstance(
       TaskCopy c, Worker w, Database db, String repoId, int validityMinutes)
       throws RepoStorageException, RepoExpiredException, RepoNotFoundException {
+    initialiseInstance(c, w, db, repoId, validityMinutes, () -> {});
+  }
+
+  /**
+   * Initialise a newly created repo as above and run onFinished once the repo has been marked
+   * ready or marked with an error.
+   */
+  public void initialiseInstance(
+      TaskCopy c,
+      Worker w,
+      Database db,
+      String repoId,
+      int validityMinutes,
+      Runnable onFinished)
+      throws RepoStorageException, RepoExpiredException, RepoNotFoundException {
     Repo repo = getInstance(repoId, true);
     // TODO: Handle remote repositories by cloning the remote repo, write the files in below
     // TODO: and then pushing it back in the callback below, and bork if we get a merge conflict.
@@ -154,6 +317,7 @@ public class RepoFactory {
           } catch (RepoStorageException e) {
             Repo.LOG.error("Fault logging success", e);
           }
+          onFinished.run();
         },
         error -> {
           try {
@@ -161,9 +325,440 @@ public class RepoFactory {
           } catch (RepoStorageException e) {
             Repo.LOG.error("Double fault logging failure", e);
           }
+          onFinished.run();
+        });
+  }
+
+  /**
+   * Schedule a job on the given worker which copies the skeleton into (or parameterises) a newly
+   * created repo. The repo is marked ready with the given validity once this is done, or marked
+   * with an error if it fails.
+   */
+  public void scheduleInitialisation(
+      Repo r, boolean usingTestingVersion, int validityMinutes, Worker worker) {
+    scheduleInitialisation(r, usingTestingVersion, validityMinutes, worker, () -> {});
+  }
+
+  /**
+   * Schedule the initialisation of a repo as above and run onFinished once the repo has been marked
+   * ready or marked with an error.
+   */
+  public void scheduleInitialisation(
+      Repo r,
+      boolean usingTestingVersion,
+      int validityMinutes,
+      Worker worker,
+      Runnable onFinished) {
+    String repoId = r.getRepoId();
+    String taskId = r.getTaskId();
+    worker.schedule(
+        new Job() {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            try {
+              Task t = taskIndex.getTask(taskId);
+              try (TaskCopy c =
+                  usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
+                Repo.LOG.info("Initialising instance for repo " + repoId);
+                repoFactory.initialiseInstance(
+                    c, worker, database, repoId, validityMinutes, onFinished);
+              }
+            } catch (TaskNotFoundException
+                | RepoNotFoundException
+                | RepoExpiredException
+                | RepoStorageException e) {
+              Repo.LOG.error("Failed to initialise repository", e);
+              try {
+                r.markError(database, e.getMessage());
+              } catch (RepoStorageException e1) {
+                Repo.LOG.error("Double fault trying to record repository error message", e1);
+              }
+              onFinished.run();
+              return Job.STATUS_FAILED;
+            }
+            return Job.STATUS_OK;
+          }
+
+          @Override
+          public String getDescription() {
+            return "Initialising repository";
+          }
         });
   }
 
+  /**
+   * Create a local repo for each of the given mutations and start initialising them, at most
+   * maxParallel at a time. The repos are created in a single database transaction. Poll the
+   * returned batch (or look it up later with getBatch) for progress.
+   */
+  public RepoBatch createBatch(
+      String taskId,
+      boolean usingTestingVersion,
+      String variant,
+      List<Integer> mutationIds,
+      int validityMinutes,
+      int maxParallel,
+      Worker worker)
+      throws RepoStorageException {
+    List<RepoInfo> repoInfos = new ArrayList<>();
+    for (int mutationId : mutationIds) {
+      repoInfos.add(
+          new RepoInfo(
+              uuidGenerator.generate(this::isRepoIdTaken),
+              taskId,
+              usingTestingVersion,
+              null,
+              variant,
+              RepoInfo.REMOTE_UNSET,
+              null,
+              mutationId,
+              null));
+    }
+    ImmutableList<Repo> repos =
+        Repo.createRepos(
+            repoInfos,
+            config,
+            database,
+            repositoryHandles,
+            blobCache,
+            treeListingCache,
+            submissionResultCache,
+            () -> useMemoryStorage(validityMinutes));
+    for (Repo repo : repos) {
+      cache.put(repo.getRepoId(), repo);
+    }
+    RepoBatch batch =
+        new RepoBatch(
+            UUID.randomUUID().toString(),
+            repos,
+            maxParallel,
+            (repo, onFinished) ->
+                scheduleInitialisation(
+                    repo, usingTestingVersion, validityMinutes, worker, onFinished));
+    batches.put(batch.getBatchId(), batch);
+    batch.start();
+    return batch;
+  }
+
+  /** Look up a batch created by createBatch. */
+  public RepoBatch getBatch(String batchId) throws RepoNotFoundException {
+    RepoBatch batch = batches.getIfPresent(batchId);
+    if (batch == null) {
+      throw new RepoNotFoundException("Batch " + batchId + " not found");
+    }
+    return batch;
+  }
+
+  /** Number of times a new git handle was opened for a repo. */
+  public long getRepositoryHandlesOpened() {
+    return repositoryHandles.getOpenedCount();
+  }
+
+  /** Number of times an existing git handle was reused rather than opening the repo again. */
+  public long getRepositoryHandlesReused() {
+    return repositoryHandles.getReusedCount();
+  }
+
+  /** Number of git handles currently held open. */
+  public long getRepositoryHandlesCached() {
+    return repositoryHandles.size();
+  }
+
+  /**
+   * Return the lock status (see Repo.getLockStatus) of every loaded repo whose lock is held or
+   * waited for right now, keyed by repoId.
+   */
+  public Map<String, Map<String, Object>> getLockStatus() {
+    Map<String, Map<String, Object>> result = new TreeMap<>();
+    for (Repo repo : cache.asMap().values()) {
+      if (repo.isLockInUse()) {
+        result.put(repo.getRepoId(), repo.getLockStatus());
+      }
+    }
+    return result;
+  }
+
+  /** Return the lock status of a repo, if it is loaded. */
+  public Map<String, Object> getLockStatus(String repoId) throws RepoNotFoundException {
+    Repo repo = cache.getIfPresent(repoId);
+    if (repo == null) {
+      throw new RepoNotFoundException("Repository " + repoId + " is not loaded");
+    }
+    return repo.getLockStatus();
+  }
+
+  /** Number of submissions which were answered with an earlier result for the same tree. */
+  public long getSubmissionResultsReused() {
+    return submissionResultCache.getHitCount();
+  }
+
+  /** Number of repos which have been unpacked from the archive. */
+  public long getReposRestored() {
+    return reposRestored.get();
+  }
+
+  /**
+   * Bytes used by the repos in memory-backed storage, or zero if there isn't any. This is the total
+   * size of the files under the memory root, so anything else sharing the mount doesn't count. The
+   * files are only added up again once the last measurement is MEMORY_MEASURE_INTERVAL_MILLIS old,
+   * so that creating a batch of repos doesn't walk the memory root for each one.
+   */
+  public long getMemoryStorageUsed() {
+    File root = config.getRepoMemoryRoot();
+    if (root == null) {
+      return 0;
+    }
+    synchronized (memoryMeasurementMutex) {
+      long now = System.currentTimeMillis();
+      if (now - memoryMeasuredTime >= MEMORY_MEASURE_INTERVAL_MILLIS) {
+        memoryMeasuredBytes = measureBytes(root);
+        memoryMeasuredTime = now;
+      }
+      return memoryMeasuredBytes;
+    }
+  }
+
+  /** Add up the sizes of the files under this directory. */
+  private static long measureBytes(File dir) {
+    long[] total = {0};
+    try {
+      Files.walkFileTree(
+          dir.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              total[0] += attrs.size();
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+              // Deleted or moved whilst we were looking at it
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      Repo.LOG.warn("Failed to measure the size of " + dir, e);
+    }
+    return total[0];
+  }
+
+  /**
+   * Return true if a new repo with this validity should go in memory-backed storage. A validity of
+   * -1 means the repo never expires so it always goes on disk.
+   */
+  private boolean useMemoryStorage(int validityMinutes) {
+    return config.getRepoMemoryRoot() != null
+        && validityMinutes >= 0
+        && validityMinutes <= config.getRepoMemoryMaxValidityMinutes()
+        && getMemoryStorageUsed() < config.getRepoMemoryMaxBytes();
+  }
+
+  /**
+   * If memory-backed storage is over its limit then move repos onto disk, least recently modified
+   * first, until it is comfortably under the limit again. Repos which are loaded but not ready yet
+   * are skipped since their initialisation is still writing to them. Repos which aren't loaded are
+   * moved without loading them, unless a git handle is still open on their directory.
+   *
+   * @return the number of repos moved to disk
+   */
+  public int spillMemoryStorage() throws RepoStorageException {
+    File memoryRoot = config.getRepoMemoryRoot();
+    if (memoryRoot == null) {
+      return 0;
+    }
+    long used;
+    synchronized (memoryMeasurementMutex) {
+      used = measureBytes(memoryRoot);
+      memoryMeasuredBytes = used;
+      memoryMeasuredTime = System.currentTimeMillis();
+    }
+    if (used <= config.getRepoMemoryMaxBytes()) {
+      return 0;
+    }
+    long target = (long) (config.getRepoMemoryMaxBytes() * SPILL_TARGET_FRACTION);
+    List<File> repoDirectories = new ArrayList<>();
+    for (File first : listDirectories(memoryRoot)) {
+      for (File second : listDirectories(first)) {
+        repoDirectories.addAll(listDirectories(second));
+      }
+    }
+    repoDirectories.sort(Comparator.comparingLong(File::lastModified));
+    int spilledCount = 0;
+    for (File repoDirectory : repoDirectories) {
+      if (used <= target) {
+        break;
+      }
+      String repoId = repoDirectory.getName();
+      Lock loadLock = loadLocks.get(repoId);
+      loadLock.lock();
+      try {
+        long size = measureBytes(repoDirectory);
+        boolean moved;
+        Repo repo = cache.getIfPresent(repoId);
+        if (repo != null) {
+          moved = repo.isReady() && repo.moveToDisk(config.getRepoDiskDir(repoId));
+        } else if (repositoryHandles.isCached(repoDirectory)) {
+          moved = false;
+        } else {
+          // Nothing holds a Repo for this id (the cache's soft reference would still be set) so
+          // the directory can be moved without loading it
+          moved = Repo.moveDirectoryToDisk(repoId, repoDirectory, config.getRepoDiskDir(repoId));
+        }
+        if (moved) {
+          spilledCount++;
+          used -= size;
+        }
+      } finally {
+        loadLock.unlock();
+      }
+    }
+    synchronized (memoryMeasurementMutex) {
+      memoryMeasuredBytes = used;
+    }
+    return spilledCount;
+  }
+
+  /** List the directories in this directory, skipping anything hidden. */
+  private static List<File> listDirectories(File dir) {
+    File[] entries = dir.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
+    return entries == null ? ImmutableList.of() : Arrays.asList(entries);
+  }
+
+  /**
+   * Archive the repos which have expired since the last pass and aren't currently in use. Archived
+   * repos are restored automatically the next time they are opened.
+   *
+   * <p>Only repos which expired since the last pass are looked at, so the work done doesn't grow
+   * with the number of repos ever created. The time of the last pass is kept in the archive
+   * directory so that this carries on across restarts. Repos which were in use are retried on the
+   * following passes until this server restarts. A repo which is restored has already expired and
+   * so it is not archived again.
+   *
+   * @return the number of repos archived
+   */
+  public int archiveExpiredRepos() throws RepoStorageException {
+    long now = System.currentTimeMillis();
+    File lastPassFile = new File(config.getRepoArchiveRoot(), LAST_ARCHIVE_PASS_FILE);
+    Set<String> repoIds = new LinkedHashSet<>(deferredArchiveRepoIds);
+    try (TransactionQueryRunner q = database.getQueryRunner()) {
+      repoIds.addAll(
+          RepoInfos.getExpiredLocalRepoIds(
+              new Timestamp(readLastArchivePass(lastPassFile)), new Timestamp(now), q));
+    } catch (SQLException e) {
+      throw new RepoStorageException("Failed to look up expired repos", e);
+    }
+    int archivedCount = 0;
+    for (String repoId : repoIds) {
+      File repoDirectory = config.getRepoDir(repoId);
+      if (!repoDirectory.exists()) {
+        deferredArchiveRepoIds.remove(repoId);
+        continue;
+      }
+      if (repositoryHandles.isCached(repoDirectory)) {
+        deferredArchiveRepoIds.add(repoId);
+        continue;
+      }
+      try {
+        // The instance stays in the cache: anyone still holding it restores the repo by using
+        // it, and if it is dropped the loader restores the repo instead.
+        if (getInstance(repoId).archive()) {
+          archivedCount++;
+        }
+        deferredArchiveRepoIds.remove(repoId);
+      } catch (RepoNotFoundException e) {
+        deferredArchiveRepoIds.remove(repoId);
+        Repo.LOG.warn("Failed to find expired repo " + repoId + " for archiving", e);
+      }
+    }
+    try {
+      Files.write(lastPassFile.toPath(), String.valueOf(now).getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to record the time of the archiving pass", e);
+    }
+    return archivedCount;
+  }
+
+  /** Return the time of the last archiving pass or zero if there hasn't been one. */
+  private static long readLastArchivePass(File lastPassFile) {
+    if (!lastPassFile.exists()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(
+          new String(Files.readAllBytes(lastPassFile.toPath()), StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      Repo.LOG.warn("Failed to read " + lastPassFile + ", looking at every expired repo", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Move repos (and their testing checkouts) from the old flat directory layout into the sharded
+   * layout. Repos which are loaded right now are left where they are for a later pass. Lookups
+   * find repos in either layout so this is safe to run whilst serving requests.
+   *
+   * <p>Task copies in the flat layout are not moved since they may be mounted into running
+   * containers. They stay where they are until the task is next rebuilt, which puts the new copy
+   * in the sharded layout.
+   *
+   * @return the number of repos left in the flat layout
+   */
+  int migrateToShardedLayout() throws RepoStorageException {
+    int remaining = 0;
+    File repoRoot = config.getRepoRoot();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(repoRoot.toPath())) {
+      for (Path entry : entries) {
+        String repoId = entry.getFileName().toString();
+        if (repoId.startsWith(".") || ShardedDirectories.isShard(repoId)) {
+          continue;
+        }
+        Lock loadLock = loadLocks.get(repoId);
+        loadLock.lock();
+        try {
+          if (cache.getIfPresent(repoId) != null) {
+            remaining++;
+            continue;
+          }
+          moveToShardedLayout(config.getRepoTestingRoot(), repoId);
+          moveToShardedLayout(repoRoot, repoId);
+        } finally {
+          loadLock.unlock();
+        }
+      }
+    } catch (IOException e) {
+      throw new RepoStorageException("Failed to move repos to the sharded layout", e);
+    }
+    return remaining;
+  }
+
+  private static void moveToShardedLayout(File root, String id) throws IOException {
+    File flat = ShardedDirectories.getFlatLocation(root, id);
+    if (!flat.exists()) {
+      return;
+    }
+    File sharded = ShardedDirectories.getShardedLocation(root, id);
+    FileUtil.mkdirIfNotExists(sharded.getParentFile());
+    Files.move(flat.toPath(), sharded.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Return the ids of the repos which have been used since we last asked. */
+  Set<String> takeRecentlyUsedRepoIds() {
+    return repositoryHandles.takeRecentlyUsed().stream()
+        .map(File::getName)
+        .collect(Collectors.toSet());
+  }
+
+  @Override
+  public void stop() {
+    Repo.LOG.info("Closing cached repository handles");
+    repositoryHandles.releaseAll();
+  }
+
   private void rethrowExecutionException(ExecutionException e)
       throws RepoStorageException, RepoNotFoundException {
     if (e.getCause() instanceof RepoStorageException) {
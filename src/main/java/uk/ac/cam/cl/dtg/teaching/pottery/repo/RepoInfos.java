@@ -20,6 +20,8 @@ package uk.ac.cam.cl.dtg.teaching.pottery.repo;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.dbutils.QueryRunner;
 
 public class RepoInfos {
@@ -48,6 +50,23 @@ public class RepoInfos {
         repoId);
   }
 
+  /** Return the ids of the local (not remote) repos which expired in the given interval. */
+  public static List<String> getExpiredLocalRepoIds(
+      Timestamp notBefore, Timestamp before, QueryRunner q) throws SQLException {
+    return q.query(
+        "SELECT repoid from repos where expiryDate >= ? and expiryDate < ? and remote = ?",
+        rs -> {
+          List<String> result = new ArrayList<>();
+          while (rs.next()) {
+            result.add(rs.getString("repoid"));
+          }
+          return result;
+        },
+        notBefore,
+        before,
+        RepoInfo.REMOTE_UNSET);
+  }
+
   /** Insert this repo in to the database. */
   public static void insert(RepoInfo repoInfo, QueryRunner q) throws SQLException {
     q.update(
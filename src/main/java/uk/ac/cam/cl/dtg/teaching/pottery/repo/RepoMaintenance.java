@@ -0,0 +1,225 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.Stoppable;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.ContextKeys;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+
+/**
+ * Periodically repacks the git databases of repos which have been used recently. Every commit to a
+ * repo leaves loose objects behind and without this a busy repo gets slower to open and read.
+ *
+ * <p>Expired repos are also archived into git bundles so that the repo directory only holds repos
+ * which are still in use, and repos left in the old flat directory layout are moved into the
+ * sharded one. If short-lived repos are kept in memory-backed storage then repos are moved out of
+ * it onto disk whenever it goes over its size limit.
+ *
+ * <p>Repacking runs on its own pool of low priority threads so that it doesn't hold up the workers.
+ * Setting the number of threads to zero turns maintenance off.
+ */
+@Singleton
+public class RepoMaintenance implements Stoppable {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(RepoMaintenance.class);
+
+  /** How often to look for repos which need repacking. */
+  private static final int SCAN_INTERVAL_MINUTES = 5;
+
+  /** How often to look for expired repos to archive and repos in the old directory layout. */
+  private static final int HOUSEKEEPING_INTERVAL_MINUTES = 60;
+
+  /** How often to check whether memory-backed repo storage is over its limit. */
+  private static final int MEMORY_CHECK_INTERVAL_MINUTES = 1;
+
+  private final RepoFactory repoFactory;
+  private final long looseObjectThreshold;
+
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService pool;
+
+  /** Repos which are queued or being repacked right now. */
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong reposChecked = new AtomicLong();
+  private final AtomicLong reposRepacked = new AtomicLong();
+  private final AtomicLong reposArchived = new AtomicLong();
+  private final AtomicLong reposSpilled = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /** Create a new RepoMaintenance service and start scanning for work. */
+  @Inject
+  public RepoMaintenance(
+      RepoFactory repoFactory,
+      @Named(ContextKeys.REPO_MAINTENANCE_THREADS) int threads,
+      @Named(ContextKeys.REPO_MAINTENANCE_LOOSE_OBJECT_THRESHOLD) int looseObjectThreshold) {
+    this.repoFactory = repoFactory;
+    this.looseObjectThreshold = looseObjectThreshold;
+    if (threads > 0) {
+      this.pool =
+          Executors.newFixedThreadPool(
+              threads,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("repo-maintenance-%d")
+                  .setPriority(Thread.MIN_PRIORITY)
+                  .setDaemon(true)
+                  .build());
+      this.scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("repo-maintenance-scan")
+                  .setDaemon(true)
+                  .build());
+      this.scheduler.scheduleWithFixedDelay(
+          this::scan, SCAN_INTERVAL_MINUTES, SCAN_INTERVAL_MINUTES, TimeUnit.MINUTES);
+      this.scheduler.scheduleWithFixedDelay(
+          () -> pool.execute(this::housekeeping),
+          1,
+          HOUSEKEEPING_INTERVAL_MINUTES,
+          TimeUnit.MINUTES);
+      this.scheduler.scheduleWithFixedDelay(
+          this::spillMemoryStorage,
+          MEMORY_CHECK_INTERVAL_MINUTES,
+          MEMORY_CHECK_INTERVAL_MINUTES,
+          TimeUnit.MINUTES);
+    } else {
+      this.pool = null;
+      this.scheduler = null;
+      LOG.info("Repo maintenance is disabled");
+    }
+  }
+
+  /**
+   * Queue up maintenance for every repo which has been used since the last scan. This runs every
+   * few minutes but can also be called directly.
+   */
+  public void scan() {
+    try {
+      for (String repoId : repoFactory.takeRecentlyUsedRepoIds()) {
+        if (pending.add(repoId)) {
+          pool.execute(() -> maintain(repoId));
+        }
+      }
+    } catch (RuntimeException e) {
+      // Exceptions would cancel the scheduled task so catch everything here
+      failures.incrementAndGet();
+      LOG.warn("Failed to scan for repos needing maintenance", e);
+    }
+  }
+
+  private void maintain(String repoId) {
+    try {
+      reposChecked.incrementAndGet();
+      Repo repo = repoFactory.getInstance(repoId);
+      long startTime = System.currentTimeMillis();
+      if (repo.runMaintenance(looseObjectThreshold)) {
+        reposRepacked.incrementAndGet();
+        LOG.info("Repacked repo {} in {}ms", repoId, System.currentTimeMillis() - startTime);
+      }
+    } catch (RepoNotFoundException e) {
+      // The repo has gone away since it was used so there's nothing to do
+    } catch (RepoStorageException e) {
+      failures.incrementAndGet();
+      LOG.warn("Failed to run maintenance on repo " + repoId, e);
+    } finally {
+      pending.remove(repoId);
+    }
+  }
+
+  private void housekeeping() {
+    try {
+      int remaining = repoFactory.migrateToShardedLayout();
+      if (remaining > 0) {
+        LOG.info("{} repos in use are still waiting to move to the sharded layout", remaining);
+      }
+    } catch (RepoStorageException e) {
+      failures.incrementAndGet();
+      LOG.warn("Failed to move repos to the sharded layout", e);
+    }
+    try {
+      int count = repoFactory.archiveExpiredRepos();
+      reposArchived.addAndGet(count);
+      if (count > 0) {
+        LOG.info("Archived {} expired repos", count);
+      }
+    } catch (RepoStorageException e) {
+      failures.incrementAndGet();
+      LOG.warn("Failed to archive expired repos", e);
+    }
+  }
+
+  private void spillMemoryStorage() {
+    try {
+      int count = repoFactory.spillMemoryStorage();
+      reposSpilled.addAndGet(count);
+      if (count > 0) {
+        LOG.info("Moved {} repos out of memory-backed storage", count);
+      }
+    } catch (RuntimeException | RepoStorageException e) {
+      // Exceptions would cancel the scheduled task so catch everything here
+      failures.incrementAndGet();
+      LOG.warn("Failed to move repos out of memory-backed storage", e);
+    }
+  }
+
+  public long getReposChecked() {
+    return reposChecked.get();
+  }
+
+  public long getReposRepacked() {
+    return reposRepacked.get();
+  }
+
+  public long getReposArchived() {
+    return reposArchived.get();
+  }
+
+  public long getReposSpilled() {
+    return reposSpilled.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public int getPending() {
+    return pending.size();
+  }
+
+  @Override
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,374 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
+import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskMissingVariantException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Parameterisation;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskIndex;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
+
+/**
+ * Pools of repos which are created and initialised ahead of time so that they can be handed out
+ * straight away, for example when a whole class starts an exam at once. There is a pool for each
+ * variant of each task (and for the testing version of the task). Pools are empty until someone
+ * sets a target size, after which they are refilled in the background whenever a repo is taken.
+ *
+ * <p>Pooled repos are ordinary repos with a short expiry and claiming one just sets the expiry that
+ * the caller asked for. Repos which are never claimed (e.g. because the server restarted) expire
+ * and are archived like any other.
+ */
+@Singleton
+public class RepoPool {
+
+  protected static final Logger LOG = LoggerFactory.getLogger(RepoPool.class);
+
+  /** Pooled repos are created with this validity so that abandoned ones expire. */
+  private static final int POOLED_VALIDITY_MINUTES = 24 * 60;
+
+  /** Pooled repos older than this are not handed out since they are getting close to expiry. */
+  private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+  private final RepoFactory repoFactory;
+  private final TaskIndex taskIndex;
+  private final Database database;
+  private final Worker worker;
+
+  private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong missed = new AtomicLong();
+
+  /** Create a new RepoPool. */
+  @Inject
+  public RepoPool(
+      RepoFactory repoFactory,
+      TaskIndex taskIndex,
+      Database database,
+      @Named(Repo.PARAMETERISATION_WORKER) Worker worker) {
+    this.repoFactory = repoFactory;
+    this.taskIndex = taskIndex;
+    this.database = database;
+    this.worker = worker;
+  }
+
+  /**
+   * Set the number of repos to keep ready for this task variant. The pool is filled on the worker
+   * rather than in the caller's thread since a large target means creating a lot of repos.
+   */
+  public void setTarget(String taskId, boolean usingTestingVersion, String variant, int target)
+      throws TaskNotFoundException, TaskMissingVariantException {
+    setTarget(taskId, usingTestingVersion, variant, target, ImmutableList.of());
+  }
+
+  /**
+   * Set the number of repos to keep ready for this task variant as above. For a parameterised task
+   * the pool is filled with the mutations for the given seeds first, so if you know which seeds
+   * are about to be asked for (e.g. for everyone sitting an exam) then pass them here.
+   */
+  public void setTarget(
+      String taskId, boolean usingTestingVersion, String variant, int target, List<Integer> seeds)
+      throws TaskNotFoundException, TaskMissingVariantException {
+    Task t = taskIndex.getTask(taskId);
+    Parameterisation parameterisation;
+    try (TaskCopy c = usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
+      if (!c.getVariants().contains(variant)) {
+        throw new TaskMissingVariantException("Variant " + variant + " is not defined");
+      }
+      parameterisation = c.getDetail().getParameterisation();
+    }
+    Pool pool =
+        pools.computeIfAbsent(
+            getPoolKey(taskId, usingTestingVersion, variant),
+            k -> new Pool(taskId, usingTestingVersion, variant));
+    pool.target = target;
+    if (parameterisation != null && !seeds.isEmpty()) {
+      pool.wanted.clear();
+      for (int seed : seeds) {
+        pool.want(seed % parameterisation.getCount());
+      }
+    }
+    scheduleRefill(pool);
+  }
+
+  /**
+   * Take a ready repo from the pool and give it the requested validity. Returns null if the pool
+   * has no suitable repo.
+   *
+   * @param mutationId the parameterisation the caller needs
+   * @param copyId the task copy which the caller would have used to create a repo. Pooled repos
+   *     made from an older copy of the task are not handed out.
+   */
+  public Repo claim(
+      String taskId,
+      boolean usingTestingVersion,
+      String variant,
+      int mutationId,
+      String copyId,
+      int validityMinutes)
+      throws RepoStorageException {
+    Pool pool = pools.get(getPoolKey(taskId, usingTestingVersion, variant));
+    if (pool == null) {
+      return null;
+    }
+    Repo result = pool.take(mutationId, copyId);
+    if (mutationId != -1) {
+      // Replace the repo we took with the same mutation, or make the one we were missing
+      pool.want(mutationId);
+    }
+    if (result != null) {
+      result.markReady(database, validityMinutes);
+      claimed.incrementAndGet();
+    } else {
+      missed.incrementAndGet();
+    }
+    scheduleRefill(pool);
+    return result;
+  }
+
+  /** Return the target, ready and pending counts for each pool. */
+  public Map<String, Map<String, Integer>> getPoolStatus() {
+    Map<String, Map<String, Integer>> result = new TreeMap<>();
+    for (Map.Entry<String, Pool> e : pools.entrySet()) {
+      Pool pool = e.getValue();
+      int ready = (int) pool.entries.stream().filter(entry -> entry.repo.isReady()).count();
+      result.put(
+          e.getKey(),
+          ImmutableMap.of(
+              "target", pool.target, "ready", ready, "pending", pool.entries.size() - ready));
+    }
+    return result;
+  }
+
+  /** Number of repo requests which were served from a pool. */
+  public long getClaimed() {
+    return claimed.get();
+  }
+
+  /** Number of repo requests for a pooled task which found no suitable repo in the pool. */
+  public long getMissed() {
+    return missed.get();
+  }
+
+  /**
+   * Refill the pool on the worker so that the caller doesn't wait for it. Does nothing if a refill
+   * is already waiting to run.
+   */
+  private void scheduleRefill(Pool pool) {
+    if (!pool.refillScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    worker.schedule(
+        new Job() {
+          @Override
+          public int execute(
+              TaskIndex taskIndex,
+              RepoFactory repoFactory,
+              ContainerManager containerManager,
+              Database database) {
+            pool.refillScheduled.set(false);
+            try {
+              refill(pool);
+              return STATUS_OK;
+            } catch (TaskNotFoundException
+                | TaskMissingVariantException
+                | RepoStorageException
+                | RepoNotFoundException e) {
+              LOG.warn("Failed to refill repo pool for task " + pool.taskId, e);
+              return STATUS_FAILED;
+            }
+          }
+
+          @Override
+          public String getDescription() {
+            return "Refilling repo pool for task " + pool.taskId;
+          }
+        });
+  }
+
+  /**
+   * Drop repos which can no longer be handed out and any beyond the target, and then create new
+   * ones until the pool reaches its target. The new repos are initialised on the parameterisation
+   * worker.
+   *
+   * <p>For a parameterised task the mutations which have been asked for are made first. If the pool
+   * is already full then repos for mutations which nobody has asked for are dropped to make room,
+   * since a claim only takes a repo with exactly the mutation it needs. Once there are no requests
+   * left the remaining space is spread over all the mutations.
+   */
+  private void refill(Pool pool)
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          RepoNotFoundException {
+    Task t = taskIndex.getTask(pool.taskId);
+    synchronized (pool) {
+      if (t.isRetired()) {
+        pool.entries.clear();
+        return;
+      }
+      try (TaskCopy c =
+          pool.usingTestingVersion ? t.acquireTestingCopy() : t.acquireRegisteredCopy()) {
+        if (!c.getVariants().contains(pool.variant)) {
+          throw new TaskMissingVariantException("Variant " + pool.variant + " is not defined");
+        }
+        String copyId = c.getCopyId();
+        pool.entries.removeIf(e -> !e.copyId.equals(copyId) || e.repo.hasError() || e.isTooOld());
+        // Newest first since they are the least likely to be ready
+        while (pool.entries.size() > pool.target) {
+          pool.entries.pollLast();
+        }
+        Parameterisation parameterisation = c.getDetail().getParameterisation();
+        if (parameterisation == null) {
+          pool.wanted.clear();
+        } else {
+          pool.wanted.removeIf(m -> m >= parameterisation.getCount());
+          dropUnwanted(pool);
+        }
+        while (pool.entries.size() < pool.target) {
+          int mutationId;
+          if (parameterisation == null) {
+            mutationId = -1;
+          } else {
+            Integer wantedMutation = pool.wanted.poll();
+            mutationId =
+                wantedMutation != null
+                    ? wantedMutation
+                    : pool.nextMutation++ % parameterisation.getCount();
+          }
+          Repo r =
+              repoFactory.createInstance(
+                  pool.taskId,
+                  pool.usingTestingVersion,
+                  null,
+                  pool.variant,
+                  RepoInfo.REMOTE_UNSET,
+                  mutationId);
+          repoFactory.scheduleInitialisation(
+              r, pool.usingTestingVersion, POOLED_VALIDITY_MINUTES, worker);
+          pool.entries.add(new PoolEntry(r, copyId, mutationId));
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop repos for mutations which haven't been asked for to make room for the ones which have.
+   * Only as many are dropped as are needed to fit the wanted mutations within the target.
+   */
+  private static void dropUnwanted(Pool pool) {
+    int excess = pool.entries.size() + pool.wanted.size() - pool.target;
+    Iterator<PoolEntry> it = pool.entries.descendingIterator();
+    while (excess > 0 && it.hasNext()) {
+      PoolEntry e = it.next();
+      if (!pool.wanted.contains(e.mutationId)) {
+        it.remove();
+        excess--;
+      }
+    }
+  }
+
+  private static String getPoolKey(String taskId, boolean usingTestingVersion, String variant) {
+    return taskId + "," + variant + (usingTestingVersion ? ",testing" : ",registered");
+  }
+
+  private static class Pool {
+    private final String taskId;
+    private final boolean usingTestingVersion;
+    private final String variant;
+    private final ConcurrentLinkedDeque<PoolEntry> entries = new ConcurrentLinkedDeque<>();
+
+    private volatile int target;
+
+    /** Set whilst a refill is waiting to run on the worker. */
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    /** Used to spread pooled repos over the different parameterisations. Guarded by this. */
+    private int nextMutation;
+
+    /** Mutations which have been asked for and should be made next, oldest first. */
+    private final ConcurrentLinkedDeque<Integer> wanted = new ConcurrentLinkedDeque<>();
+
+    Pool(String taskId, boolean usingTestingVersion, String variant) {
+      this.taskId = taskId;
+      this.usingTestingVersion = usingTestingVersion;
+      this.variant = variant;
+    }
+
+    /** Ask for a repo with this mutation, forgetting the oldest request if there are too many. */
+    void want(int mutationId) {
+      wanted.add(mutationId);
+      while (wanted.size() > Math.max(target, 0)) {
+        wanted.poll();
+      }
+    }
+
+    /** Remove and return a ready repo with the given mutation made from the given task copy. */
+    Repo take(int mutationId, String copyId) {
+      for (PoolEntry e : entries) {
+        if (e.mutationId == mutationId
+            && e.copyId.equals(copyId)
+            && e.repo.isReady()
+            && !e.repo.hasError()
+            && !e.isTooOld()
+            && entries.remove(e)) {
+          return e.repo;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class PoolEntry {
+    private final Repo repo;
+    private final String copyId;
+    private final int mutationId;
+    private final long createdTime = System.currentTimeMillis();
+
+    PoolEntry(Repo repo, String copyId, int mutationId) {
+      this.repo = repo;
+      this.copyId = copyId;
+      this.mutationId = mutationId;
+    }
+
+    boolean isTooOld() {
+      return System.currentTimeMillis() - createdTime > MAX_AGE_MILLIS;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+/**
+ * Keeps long-lived jgit Repository handles for repos which are in use so that we don't rebuild the
+ * ref database, pack list and config on every request.
+ *
+ * <p>Handles are reference counted using jgit's own open count. The cache holds one reference and
+ * every caller of acquire gets another which they must release by calling close on the returned
+ * Repository (use try with resources). A handle which is evicted whilst in use is only closed once
+ * the last user releases it.
+ */
+class RepositoryHandleCache {
+
+  /** Handles which are not used for this many minutes are closed. */
+  private static final int IDLE_MINUTES = 10;
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+
+  /** Repo directories which have been opened since the last call to takeRecentlyUsed. */
+  private final Set<File> recentlyUsed = ConcurrentHashMap.newKeySet();
+
+  private final Cache<File, Repository> handles =
+      CacheBuilder.newBuilder()
+          .expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+          .removalListener(
+              (RemovalListener<File, Repository>)
+                  notification -> {
+                    Repo.LOG.debug("Closing repository handle for " + notification.getKey());
+                    notification.getValue().close();
+                  })
+          .build();
+
+  /**
+   * Return an open handle on the git repository in the given working directory. The caller must
+   * close the result when they are finished with it.
+   */
+  synchronized Repository acquire(File repoDirectory) throws IOException {
+    Repository repository = handles.getIfPresent(repoDirectory);
+    if (repository == null) {
+      repository = open(repoDirectory);
+      handles.put(repoDirectory, repository);
+      opened.incrementAndGet();
+    } else {
+      reused.incrementAndGet();
+    }
+    repository.incrementOpen();
+    recentlyUsed.add(repoDirectory);
+    return repository;
+  }
+
+  /** Open a new handle on the git repository in the given working directory. */
+  Repository open(File repoDirectory) throws IOException {
+    return new FileRepositoryBuilder()
+        .setWorkTree(repoDirectory)
+        .setGitDir(new File(repoDirectory, ".git"))
+        .setMustExist(true)
+        .build();
+  }
+
+  /** Return the repo directories which have been used since we last asked, and reset the list. */
+  Set<File> takeRecentlyUsed() {
+    Set<File> result = new HashSet<>();
+    for (Iterator<File> it = recentlyUsed.iterator(); it.hasNext(); ) {
+      result.add(it.next());
+      it.remove();
+    }
+    return result;
+  }
+
+  /** Return true if there is an open handle for this directory. */
+  boolean isCached(File repoDirectory) {
+    return handles.getIfPresent(repoDirectory) != null;
+  }
+
+  /** Drop the cached handle (if any) for this directory. */
+  synchronized void release(File repoDirectory) {
+    handles.invalidate(repoDirectory);
+  }
+
+  /** Drop all cached handles. */
+  synchronized void releaseAll() {
+    handles.invalidateAll();
+  }
+
+  long getOpenedCount() {
+    return opened.get();
+  }
+
+  long getReusedCount() {
+    return reused.get();
+  }
+
+  long size() {
+    return handles.size();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.AnyObjectId;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.StepResult;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
+
+/**
+ * Cache of finished submissions, shared between all repos, so that testing a tree which has already
+ * been tested gives the earlier result rather than running the containers again.
+ *
+ * <p>Entries are keyed by the git tree that was tested along with everything else that decides
+ * what the tests do: the task copy, the variant, the action and the mutation. Git trees are
+ * immutable and so are task copies so entries never need invalidating.
+ */
+class SubmissionResultCache {
+
+  /** Total size of step output to hold in memory. */
+  private static final long MAX_TOTAL_OUTPUT_CHARS = 32L * 1024 * 1024;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final Cache<String, Submission> results =
+      CacheBuilder.newBuilder()
+          .maximumWeight(MAX_TOTAL_OUTPUT_CHARS)
+          .weigher((Weigher<String, Submission>) (key, submission) -> getWeight(submission))
+          .build();
+
+  /** Return the earlier result of testing this tree or null if there isn't one. */
+  Submission get(
+      AnyObjectId treeId, String copyId, String variant, String action, int mutationId) {
+    Submission result = results.getIfPresent(getKey(treeId, copyId, variant, action, mutationId));
+    if (result != null) {
+      hits.incrementAndGet();
+    }
+    return result;
+  }
+
+  void put(
+      AnyObjectId treeId,
+      String copyId,
+      String variant,
+      String action,
+      int mutationId,
+      Submission submission) {
+    results.put(getKey(treeId, copyId, variant, action, mutationId), submission);
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  private static String getKey(
+      AnyObjectId treeId, String copyId, String variant, String action, int mutationId) {
+    return treeId.getName() + "," + copyId + "," + variant + "," + action + "," + mutationId;
+  }
+
+  private static int getWeight(Submission submission) {
+    int weight = 1;
+    for (StepResult step : submission.getSteps()) {
+      if (step.getOutput() != null) {
+        weight += step.getOutput().length();
+      }
+    }
+    return weight;
+  }
+}
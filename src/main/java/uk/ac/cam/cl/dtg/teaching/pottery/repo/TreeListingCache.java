@@ -0,0 +1,56 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Cache of recursive file listings for git trees, shared between all repos. Trees are immutable so
+ * the listing for a tree id never changes.
+ */
+class TreeListingCache {
+
+  /** Approximate number of bytes of file names to hold in memory. */
+  private static final long MAX_TOTAL_BYTES = 32L * 1024 * 1024;
+
+  /** Rough per-entry overhead of a String in the list. */
+  private static final int ENTRY_OVERHEAD_BYTES = 40;
+
+  private final Cache<ObjectId, ImmutableList<String>> listings =
+      CacheBuilder.newBuilder()
+          .maximumWeight(MAX_TOTAL_BYTES)
+          .weigher(
+              (Weigher<ObjectId, ImmutableList<String>>)
+                  (treeId, files) ->
+                      files.stream().mapToInt(f -> ENTRY_OVERHEAD_BYTES + 2 * f.length()).sum())
+          .build();
+
+  /** Return the listing for this tree or null if it's not in the cache. */
+  ImmutableList<String> get(AnyObjectId treeId) {
+    return listings.getIfPresent(treeId.toObjectId());
+  }
+
+  void put(AnyObjectId treeId, ImmutableList<String> files) {
+    listings.put(treeId.toObjectId(), files);
+  }
+}
@@ -29,11 +29,19 @@ public class Parameterisation {
   @ApiModelProperty("Step to generate the parameterised task problem statement.")
   private final Step generator;
 
+  @ApiModelProperty(
+      "True if the generator always produces the same output for the same variant and mutation. "
+          + "The output is then cached and reused rather than running the generator every time.")
+  private final boolean cacheable;
+
   @JsonCreator
   public Parameterisation(
-      @JsonProperty("count") int count, @JsonProperty("generator") Step generator) {
+      @JsonProperty("count") int count,
+      @JsonProperty("generator") Step generator,
+      @JsonProperty("cacheable") Boolean cacheable) {
     this.count = count;
     this.generator = generator;
+    this.cacheable = cacheable != null && cacheable;
   }
 
   public int getCount() {
@@ -44,8 +52,12 @@ public class Parameterisation {
     return generator;
   }
 
+  public boolean isCacheable() {
+    return cacheable;
+  }
+
   public Parameterisation withDefaultContainerRestrictions(ContainerRestrictions restrictions) {
     return new Parameterisation(
-        getCount(), getGenerator().withDefaultContainerRestriction(restrictions));
+        getCount(), getGenerator().withDefaultContainerRestriction(restrictions), isCacheable());
   }
 }
@@ -367,7 +367,7 @@ public class Task {
 
         registeredBuilder =
             TaskCopyBuilder.createNew(
-                sha1, taskId, taskDefLocation, uuidGenerator.generate(), config);
+                sha1, taskId, taskDefLocation, generateCopyId(), config);
 
         registeredBuilder.schedule(
             w,
@@ -464,7 +464,7 @@ public class Task {
         String headSha = getHeadSha();
         testingBuilder =
             TaskCopyBuilder.createNew(
-                headSha, taskId, taskDefLocation, uuidGenerator.generate(), config);
+                headSha, taskId, taskDefLocation, generateCopyId(), config);
 
         testingBuilder.schedule(
             w,
@@ -542,6 +542,17 @@ public class Task {
     throw new TaskStorageException("Failed to find head reference");
   }
 
+  /**
+   * Generate an id for a new task copy. Existing copies are found by looking for their directory
+   * rather than by reserving every id up front. The id is reserved so that it won't be handed out
+   * again before the copy directory has been created.
+   */
+  private String generateCopyId() {
+    String copyId = uuidGenerator.generate(id -> config.getTaskCopyDir(id).exists());
+    uuidGenerator.reserve(copyId);
+    return copyId;
+  }
+
   /** Schedule the deletion of this taskcopy. */
   private void destroyTaskCopy(TaskCopy c, Worker w) {
     if (c != null) {
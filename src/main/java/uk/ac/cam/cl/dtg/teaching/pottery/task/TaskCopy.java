@@ -17,18 +17,26 @@
  */
 package uk.ac.cam.cl.dtg.teaching.pottery.task;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
 import uk.ac.cam.cl.dtg.teaching.pottery.TwoPhaseLatch;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
@@ -47,6 +55,14 @@ import uk.ac.cam.cl.dtg.teaching.pottery.model.TaskInfo;
  */
 public class TaskCopy implements AutoCloseable {
 
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  /** Name of the file holding the parameterisation result in each cache entry. */
+  private static final String PARAMETERISATION_RESULT_FILE = "result.json";
+
+  /** Name of the directory holding the generated files in each cache entry. */
+  private static final String PARAMETERISATION_FILES_DIR = "files";
+
   private String copyId;
   private TaskConfig config;
   private TaskDetail detail;
@@ -139,6 +155,113 @@ public class TaskCopy implements AutoCloseable {
     return FileUtil.copyFilesRecursively(config.getSkeletonDir(copyId, variant), destination);
   }
 
+  /**
+   * Return a git object directory holding all the objects from this task copy, creating it if
+   * needed. Repos made from this copy use it as an alternate object store so that the skeleton is
+   * stored once rather than once per repo.
+   *
+   * <p>The store is named after the commit the copy was built from rather than after the copy, so
+   * every copy built from the same commit of the task shares one store. Rebuilding a task copy
+   * therefore doesn't add another store unless the task has changed.
+   *
+   * <p>Stores are never deleted whilst the server is running since repos might still refer to them.
+   * docs/shared-object-stores.txt describes how to remove unused stores whilst the server is
+   * stopped. A store which has been removed is made again from the copy the next time it is needed.
+   */
+  public synchronized File getSharedObjectStore() throws IOException {
+    File gitDir = new File(getLocation(), Constants.DOT_GIT);
+    String commitId;
+    try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir).build()) {
+      ObjectId head = repository.resolve(Constants.HEAD);
+      if (head == null) {
+        throw new IOException("Task copy " + copyId + " has no commits to share");
+      }
+      commitId = head.getName();
+    }
+    File store = config.getTaskObjectStoreDir(commitId);
+    if (!store.exists()) {
+      FileUtil.mkdirIfNotExists(store.getParentFile());
+      try (FileUtil.AutoDelete tmp = FileUtil.tmpdirWithAutoDelete(store.getParentFile())) {
+        FileUtil.copyFilesRecursively(new File(gitDir, "objects"), tmp.getFile());
+        try {
+          Files.move(tmp.getFile().toPath(), store.toPath(), StandardCopyOption.ATOMIC_MOVE);
+          tmp.persist();
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+          // Another copy of the same commit created the store whilst we were copying it
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Copy the cached output of the parameterisation generator for this variant and mutation into the
+   * destination directory. Returns null if the task's parameterisation isn't cacheable or if
+   * nothing has been cached yet.
+   */
+  public ParameterisationResult copyCachedParameterisation(
+      String variant, int mutationId, File destination) throws IOException {
+    File cacheEntry = getParameterisationCacheEntry(variant, mutationId);
+    if (cacheEntry == null || !cacheEntry.exists()) {
+      return null;
+    }
+    ParameterisationResult result =
+        objectMapper.readValue(
+            new File(cacheEntry, PARAMETERISATION_RESULT_FILE), ParameterisationResult.class);
+    FileUtil.copyFilesRecursively(new File(cacheEntry, PARAMETERISATION_FILES_DIR), destination);
+    return result;
+  }
+
+  /**
+   * Store the output of the parameterisation generator so that it can be reused for other repos
+   * with the same variant and mutation. Does nothing if the task's parameterisation isn't
+   * cacheable.
+   *
+   * @param source the directory the generator wrote the files in result into
+   */
+  public void cacheParameterisation(
+      String variant, int mutationId, ParameterisationResult result, File source)
+      throws IOException {
+    File cacheEntry = getParameterisationCacheEntry(variant, mutationId);
+    if (cacheEntry == null || cacheEntry.exists()) {
+      return;
+    }
+    FileUtil.mkdirIfNotExists(cacheEntry.getParentFile());
+    try (FileUtil.AutoDelete tmp = FileUtil.tmpdirWithAutoDelete(cacheEntry.getParentFile())) {
+      File files = new File(tmp.getFile(), PARAMETERISATION_FILES_DIR);
+      for (String fileName : result.getFiles()) {
+        File sourceFile = new File(source, fileName);
+        if (!FileUtil.isParent(source, sourceFile)) {
+          throw new IOException("Parameterisation file " + fileName + " is outside the repo");
+        }
+        File destination = new File(files, fileName);
+        if (sourceFile.isDirectory()) {
+          FileUtil.copyFilesRecursively(sourceFile, destination);
+        } else if (sourceFile.exists()) {
+          FileUtil.mkdirIfNotExists(destination.getParentFile());
+          Files.copy(sourceFile.toPath(), destination.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+      }
+      objectMapper.writeValue(new File(tmp.getFile(), PARAMETERISATION_RESULT_FILE), result);
+      try {
+        Files.move(tmp.getFile().toPath(), cacheEntry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        tmp.persist();
+      } catch (FileAlreadyExistsException e) {
+        // Someone else cached the same output whilst we were copying it
+      }
+    }
+  }
+
+  /** Return the cache directory for this variant and mutation or null if caching is disabled. */
+  private File getParameterisationCacheEntry(String variant, int mutationId) {
+    Parameterisation parameterisation = detail.getParameterisation();
+    if (parameterisation == null || !parameterisation.isCacheable()) {
+      return null;
+    }
+    return new File(
+        new File(config.getParameterisationCacheDir(copyId), variant), String.valueOf(mutationId));
+  }
+
   public boolean acquire() {
     return latch.acquire();
   }
@@ -147,6 +270,7 @@ public class TaskCopy implements AutoCloseable {
   void destroy() throws IOException, InterruptedException {
     latch.await();
     FileUtil.deleteRecursive(config.getTaskCopyDir(copyId));
+    FileUtil.deleteRecursive(config.getParameterisationCacheDir(copyId));
   }
 
   @Override
@@ -68,9 +68,9 @@ public class TaskFactory {
     FileUtil.mkdirIfNotExists(config.getTaskDefinitionRoot());
     FileUtil.mkdirIfNotExists(config.getTaskCopyRoot());
 
-    Stream.concat(
-            Stream.of(config.getTaskDefinitionRoot().listFiles()),
-            Stream.of(config.getTaskCopyRoot().listFiles()))
+    // Task copy ids aren't reserved here: the copy root is sharded and so its entries aren't ids.
+    // Task.generateCopyId checks for an existing copy directory instead.
+    Stream.of(config.getTaskDefinitionRoot().listFiles())
         .filter(f -> !f.getName().startsWith("."))
         .forEach(f -> uuidGenerator.reserve(f.getName()));
 
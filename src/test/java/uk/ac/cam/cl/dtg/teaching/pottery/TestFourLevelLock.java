@@ -0,0 +1,168 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestFourLevelLock {
+
+  private static final long TIMEOUT_MILLIS = 100;
+
+  private final FourLevelLock lock = new FourLevelLock(true, TIMEOUT_MILLIS);
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private Thread holder;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    release.countDown();
+    if (holder != null) {
+      holder.join();
+    }
+  }
+
+  interface LockTaker {
+    FourLevelLock.AutoCloseableLock take() throws InterruptedException, LockTimeoutException;
+  }
+
+  /** Take a lock on another thread and hold it until the test releases it. */
+  private void holdOnAnotherThread(LockTaker lockTaker) throws InterruptedException {
+    CountDownLatch acquired = new CountDownLatch(1);
+    holder =
+        new Thread(
+            () -> {
+              try (FourLevelLock.AutoCloseableLock l = lockTaker.take()) {
+                acquired.countDown();
+                release.await();
+              } catch (InterruptedException | LockTimeoutException e) {
+                throw new Error(e);
+              }
+            },
+            "holder");
+    holder.start();
+    acquired.await();
+  }
+
+  /** Let the other thread go and wait for it to finish with the lock. */
+  private void releaseOtherThread() throws InterruptedException {
+    release.countDown();
+    holder.join();
+  }
+
+  @Test
+  public void takeGitDbOpLock_throwsLockTimeoutExceptionWhenContended()
+      throws InterruptedException {
+    // ARRANGE
+    holdOnAnotherThread(lock::takeFullExclusionLock);
+    long start = System.currentTimeMillis();
+
+    // ACT
+    LockTimeoutException thrown = null;
+    try (FourLevelLock.AutoCloseableLock l = lock.takeGitDbOpLock()) {
+      fail("Expected LockTimeoutException");
+    } catch (LockTimeoutException e) {
+      thrown = e;
+    }
+
+    // ASSERT
+    assertThat(System.currentTimeMillis() - start).isAtLeast(TIMEOUT_MILLIS);
+    assertThat(thrown.getMessage()).contains("FULL_EXCLUSION");
+  }
+
+  @Test
+  public void takeFileReadingLock_releasesTopLevelLockWhenSecondLevelTimesOut()
+      throws InterruptedException, LockTimeoutException {
+    // ARRANGE
+    holdOnAnotherThread(lock::takeFileWritingLock);
+    try (FourLevelLock.AutoCloseableLock l = lock.takeFileReadingLock()) {
+      fail("Expected LockTimeoutException");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    releaseOtherThread();
+
+    // ACT
+    // If this thread still held the top-level read lock then it could not take the write lock
+    try (FourLevelLock.AutoCloseableLock l = lock.takeFullExclusionLock()) {
+
+      // ASSERT
+      assertThat(lock.getStatus().get("holders").toString()).contains("FULL_EXCLUSION");
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void getStatus_listsWaitersWhilstLockIsContended()
+      throws InterruptedException, LockTimeoutException {
+    // ARRANGE
+    FourLevelLock waitingLock = new FourLevelLock(true, 0);
+    holdOnAnotherThread(waitingLock::takeFullExclusionLock);
+    Thread waiter =
+        new Thread(
+            () -> {
+              try (FourLevelLock.AutoCloseableLock l = waitingLock.takeFileWritingLock()) {
+                // nothing to do
+              } catch (InterruptedException | LockTimeoutException e) {
+                throw new Error(e);
+              }
+            },
+            "waiter");
+    waiter.start();
+    while (((List<?>) waitingLock.getStatus().get("waiters")).isEmpty()) {
+      Thread.sleep(10);
+    }
+
+    // ACT
+    ImmutableMap<String, Object> status = waitingLock.getStatus();
+
+    // ASSERT
+    assertThat(status.get("holders").toString()).contains("FULL_EXCLUSION");
+    assertThat(status.get("waiters").toString()).contains("FILE_WRITING");
+    releaseOtherThread();
+    waiter.join();
+    assertThat(waitingLock.isInUse()).isFalse();
+  }
+
+  @Test
+  public void close_recordsWaitAndHoldTimes() throws InterruptedException, LockTimeoutException {
+    // ARRANGE
+    try (FourLevelLock.AutoCloseableLock l = lock.takeGitDbOpLock()) {
+      assertThat(lock.isInUse()).isTrue();
+    }
+
+    // ACT
+    ImmutableMap<String, Object> status = lock.getStatus();
+
+    // ASSERT
+    assertThat(lock.isInUse()).isFalse();
+    assertThat((List<?>) status.get("holders")).isEmpty();
+    assertThat(((Map<?, ?>) status.get("waitTimes")).get("count")).isEqualTo(1L);
+    assertThat(((Map<?, ?>) status.get("holdTimes")).get("count")).isEqualTo(1L);
+  }
+}
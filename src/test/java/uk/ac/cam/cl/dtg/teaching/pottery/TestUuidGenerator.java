@@ -0,0 +1,49 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestUuidGenerator {
+
+  @Test
+  public void generate_skipsIdsWhichAreTaken() {
+    // ARRANGE
+    UuidGenerator uuidGenerator = new UuidGenerator();
+    List<String> candidates = new ArrayList<>();
+
+    // ACT
+    String result =
+        uuidGenerator.generate(
+            id -> {
+              candidates.add(id);
+              return candidates.size() < 3;
+            });
+
+    // ASSERT
+    assertThat(candidates).hasSize(3);
+    assertThat(result).isEqualTo(candidates.get(2));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.cam.cl.dtg.teaching.pottery.model.JobStatus;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Job;
+import uk.ac.cam.cl.dtg.teaching.pottery.worker.Worker;
+
+/** A worker which holds on to jobs until the test asks for them to be run. */
+class QueueingWorker implements Worker {
+
+  private final List<Job> jobs = new ArrayList<>();
+
+  /** Run the jobs scheduled so far, in order, on the given worker. */
+  void runQueuedJobs(Worker worker) {
+    List<Job> toRun = new ArrayList<>(jobs);
+    jobs.clear();
+    for (Job job : toRun) {
+      worker.schedule(job);
+    }
+  }
+
+  @Override
+  public void rebuildThreadPool(int numThreads) {}
+
+  @Override
+  public int getNumThreads() {
+    return 0;
+  }
+
+  @Override
+  public List<JobStatus> getQueue() {
+    return jobs.stream()
+        .map(job -> new JobStatus(job.getDescription(), null))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  @Override
+  public void schedule(Job... jobs) {
+    this.jobs.addAll(Arrays.asList(jobs));
+  }
+
+  @Override
+  public long getSmoothedWaitTime() {
+    return 0;
+  }
+
+  @Override
+  public void stop() {}
+}
@@ -34,7 +34,6 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.ContainerEnvConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
 import uk.ac.cam.cl.dtg.teaching.pottery.config.TaskConfig;
-import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerBackend;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.ContainerManager;
 import uk.ac.cam.cl.dtg.teaching.pottery.containers.UncontainerImpl;
 import uk.ac.cam.cl.dtg.teaching.pottery.database.Database;
@@ -52,6 +51,7 @@ import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Action;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Execution;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Parameterisation;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Step;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
@@ -73,7 +73,7 @@ class TestEnvironment {
   private final TaskIndex taskIndex;
   private final Worker worker;
   private final RepoConfig repoConfig;
-  private final ContainerBackend containerBackend;
+  private final UncontainerImpl containerBackend;
   private final Database database;
 
   TestEnvironment(String testRootDir)
@@ -95,10 +95,22 @@ class TestEnvironment {
     return repoConfig;
   }
 
+  UncontainerImpl getContainerBackend() {
+    return containerBackend;
+  }
+
   Worker getWorker() {
     return worker;
   }
 
+  RepoFactory getRepoFactory() {
+    return repoFactory;
+  }
+
+  TaskIndex getTaskIndex() {
+    return taskIndex;
+  }
+
   Database getDatabase() {
     return database;
   }
@@ -117,9 +129,56 @@ class TestEnvironment {
     }
   }
 
+  /** Create a repo for a parameterised task and run its parameterisation. */
+  Repo createParameterisedRepo(Task task, int mutationId)
+      throws RepoStorageException, RepoNotFoundException, TaskNotFoundException,
+          RepoExpiredException {
+    Calendar calendar = Calendar.getInstance();
+    calendar.add(Calendar.YEAR, 10);
+    Repo repo =
+        repoFactory.createInstance(
+            task.getTaskId(), true, calendar.getTime(), VARIANT, RepoInfo.REMOTE_UNSET, mutationId);
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      repoFactory.initialiseInstance(c, worker, database, repo.getRepoId(), 60);
+    }
+    return repo;
+  }
+
+  /**
+   * Make a git repository outside the server with the skeleton committed to master, and a repo on
+   * the server which uses it as its remote.
+   */
+  Repo createRemoteRepo(Task task, File remoteDir)
+      throws RepoStorageException, RepoNotFoundException, IOException, GitAPIException {
+    try (Git g = Git.init().setDirectory(remoteDir).call()) {
+      makeScript(remoteDir, "skeleton.sh", printingScript("Skeleton"), g);
+      g.commit().setMessage("Initial commit").call();
+    }
+    Calendar calendar = Calendar.getInstance();
+    calendar.add(Calendar.YEAR, 10);
+    return repoFactory.createInstance(
+        task.getTaskId(), true, calendar.getTime(), VARIANT, "file://" + remoteDir.getPath(), 0);
+  }
+
   Task createNoOpTask()
       throws TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
           RetiredTaskException, InvalidTaskSpecificationException {
+    return createTask(null);
+  }
+
+  /**
+   * Create a task with a cacheable parameterisation. The generator writes param.txt naming the
+   * mutation id and appends a line to generatorRuns every time it runs.
+   */
+  Task createCacheableParameterisedTask(File generatorRuns)
+      throws TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException {
+    return createTask(generatorRuns);
+  }
+
+  private Task createTask(File generatorRuns)
+      throws TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException {
     Task task = taskFactory.createInstance();
     String taskId = task.getTaskId();
 
@@ -152,6 +211,20 @@ class TestEnvironment {
 
       makeScript(copyRoot, "output.sh", argListingScript(), g);
 
+      Parameterisation parameterisation = null;
+      if (generatorRuns != null) {
+        makeScript(copyRoot, "generate.sh", generatorScript(generatorRuns), g);
+        parameterisation =
+            new Parameterisation(
+                2,
+                new Step(
+                    ImmutableMap.of(
+                        VARIANT,
+                        new Execution(
+                            "template:java", "@TASK@/generate.sh @SUBMISSION@ @MUTATION@", null))),
+                true);
+      }
+
       TaskDetail d =
           new TaskDetail(
               TaskInfo.TYPE_ALGORITHM,
@@ -185,7 +258,7 @@ class TestEnvironment {
                   new Action(
                       "Validate this solution",
                       ImmutableList.of("compile", "harness", "validate"))),
-              null,
+              parameterisation,
               null);
       TaskDetail.save(d, copyRoot);
       g.add().addFilepattern("task.json").call();
@@ -215,6 +288,17 @@ class TestEnvironment {
         .collect(Collectors.joining("\n"));
   }
 
+  private static String generatorScript(File generatorRuns) {
+    return ImmutableList.of(
+            "#!/bin/bash",
+            "",
+            "echo run >> " + generatorRuns.getPath(),
+            "echo \"Mutation $2\" > $1/param.txt",
+            "echo '{\"problemStatement\":\"Mutation '$2'\",\"files\":[\"param.txt\"]}'")
+        .stream()
+        .collect(Collectors.joining("\n"));
+  }
+
   static String argListingScript() {
     return ImmutableList.of("#!/bin/bash", "", "echo $@").stream()
         .collect(Collectors.joining("\n"));
@@ -18,17 +18,27 @@
 package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
 import org.apache.commons.io.Charsets;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.After;
 import org.junit.Before;
@@ -45,7 +55,11 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoMaintenance;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 
 public class TestRepo {
 
@@ -89,6 +103,73 @@ public class TestRepo {
     assertThat(new String(fileContents)).isEqualTo(expectedContents);
   }
 
+  @Test
+  public void readBlob_returnsCopyOfCachedContents()
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException,
+          JsonProcessingException {
+
+    // ARRANGE
+    String expectedContents = TestEnvironment.printingScript("Skeleton");
+    ObjectId blobId = repo.resolveFile("HEAD", "skeleton.sh");
+    byte[] firstRead = repo.readBlob(blobId);
+    Arrays.fill(firstRead, (byte) 0);
+
+    // ACT
+    byte[] secondRead = repo.readBlob(blobId);
+
+    // ASSERT
+    assertThat(new String(secondRead)).isEqualTo(expectedContents);
+  }
+
+  @Test
+  public void readFile_holdsOnlyGitOperationLockWhilstStreamingLargeFile()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException, IOException {
+
+    // ARRANGE
+    byte[] largeContents = new byte[Repo.MAX_IN_MEMORY_FILE_BYTES * 2];
+    Arrays.fill(largeContents, (byte) 'x');
+    repo.updateFile("large.txt", largeContents);
+    List<Object> holdersWhilstWriting = new ArrayList<>();
+    ByteArrayOutputStream output =
+        new ByteArrayOutputStream() {
+          @Override
+          public synchronized void write(byte[] b, int off, int len) {
+            holdersWhilstWriting.add(repo.getLockStatus().get("holders"));
+            super.write(b, off, len);
+          }
+        };
+
+    // ACT
+    repo.readFile("HEAD", "large.txt", output);
+
+    // ASSERT
+    assertThat(output.toByteArray()).isEqualTo(largeContents);
+    assertThat(holdersWhilstWriting).isNotEmpty();
+    for (Object holders : holdersWhilstWriting) {
+      assertThat((List<?>) holders).hasSize(1);
+      assertThat(((List<?>) holders).get(0).toString()).contains("GIT_DB_OPERATION");
+    }
+  }
+
+  @Test
+  public void readFile_refusesToReadLargeFileIntoMemory()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] largeContents = new byte[Repo.MAX_IN_MEMORY_FILE_BYTES + 1];
+    repo.updateFile("large.txt", largeContents);
+
+    // ACT
+    try {
+      repo.readFile("HEAD", "large.txt");
+      fail("Expected RepoStorageException");
+    } catch (RepoStorageException e) {
+      // expected
+    }
+  }
+
   @Test
   public void listFiles_findsSkeletonFile() throws RepoStorageException, RepoTagNotFoundException {
 
@@ -113,6 +194,42 @@ public class TestRepo {
     assertThat(tags).contains(tagName);
   }
 
+  @Test
+  public void createTag_numbersTagsInOrder() throws RepoStorageException, RepoExpiredException {
+
+    // ACT
+    String first = repo.createNewTag();
+    String second = repo.createNewTag();
+    List<String> tags = repo.listTags();
+
+    // ASSERT
+    assertThat(first).isEqualTo("online-000");
+    assertThat(second).isEqualTo("online-001");
+    assertThat(tags).containsExactly(first, second).inOrder();
+  }
+
+  @Test
+  public void listTags_includesTagsAddedOutsideTheServer()
+      throws RepoStorageException, RepoExpiredException, IOException, GitAPIException {
+
+    // ARRANGE
+    String first = repo.createNewTag();
+    repo.listTags();
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+    try (Git g = Git.open(repoDir)) {
+      g.tag().setName("online-005").call();
+      g.tag().setName("online-extra").call();
+    }
+
+    // ACT
+    List<String> tags = repo.listTags();
+    String next = repo.createNewTag();
+
+    // ASSERT
+    assertThat(tags).containsExactly(first, "online-005", "online-extra").inOrder();
+    assertThat(next).isEqualTo("online-006");
+  }
+
   @Test
   public void updateFile_altersFileContents()
       throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
@@ -129,6 +246,315 @@ public class TestRepo {
     assertThat(readContents).isEqualTo(updatedContents);
   }
 
+  @Test
+  public void updateFiles_appliesUpdatesAndDeletes()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] firstContents = "FIRST".getBytes(Charsets.UTF_8);
+    byte[] secondContents = "SECOND".getBytes(Charsets.UTF_8);
+
+    // ACT
+    repo.updateFiles(
+        ImmutableMap.of("first.txt", firstContents, "dir/second.txt", secondContents),
+        ImmutableList.of("skeleton.sh"));
+
+    // ASSERT
+    assertThat(repo.listFiles("HEAD")).containsExactly("first.txt", "dir/second.txt");
+    assertThat(repo.readFile("HEAD", "dir/second.txt")).isEqualTo(secondContents);
+  }
+
+  @Test
+  public void updateFiles_rejectsGitDirectoryWithoutChangingWorkingTree()
+      throws RepoExpiredException, RepoStorageException, RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] contents = "CONTENTS".getBytes(Charsets.UTF_8);
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+
+    // ACT
+    try {
+      repo.updateFiles(
+          ImmutableMap.of("first.txt", contents, ".git/hooks/post-commit", contents),
+          ImmutableList.of("skeleton.sh"));
+      fail("Expected RepoFileNotFoundException");
+    } catch (RepoFileNotFoundException e) {
+      // expected
+    }
+
+    // ASSERT
+    assertThat(new File(repoDir, "first.txt").exists()).isFalse();
+    assertThat(new File(repoDir, "skeleton.sh").exists()).isTrue();
+    assertThat(new File(repoDir, ".git/hooks/post-commit").exists()).isFalse();
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh");
+  }
+
+  @Test
+  public void updateFiles_rejectsPathBothUpdatedAndDeletedWithoutChangingWorkingTree()
+      throws RepoExpiredException, RepoStorageException, RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] contents = "CONTENTS".getBytes(Charsets.UTF_8);
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+
+    // ACT
+    try {
+      repo.updateFiles(
+          ImmutableMap.of("first.txt", contents, "skeleton.sh", contents),
+          ImmutableList.of("skeleton.sh"));
+      fail("Expected RepoFileNotFoundException");
+    } catch (RepoFileNotFoundException e) {
+      // expected
+    }
+
+    // ASSERT
+    assertThat(new File(repoDir, "first.txt").exists()).isFalse();
+    assertThat(new File(repoDir, "skeleton.sh").exists()).isTrue();
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh");
+  }
+
+  @Test
+  public void updateFiles_rejectsRepeatedDelete()
+      throws RepoExpiredException, RepoStorageException, RepoTagNotFoundException {
+
+    // ARRANGE
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+
+    // ACT
+    try {
+      repo.updateFiles(ImmutableMap.of(), ImmutableList.of("skeleton.sh", "skeleton.sh"));
+      fail("Expected RepoFileNotFoundException");
+    } catch (RepoFileNotFoundException e) {
+      // expected
+    }
+
+    // ASSERT
+    assertThat(new File(repoDir, "skeleton.sh").exists()).isTrue();
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh");
+  }
+
+  @Test
+  public void updateFiles_commitsFilesInNestedDirectories()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    byte[] deepContents = "DEEP".getBytes(Charsets.UTF_8);
+    byte[] shallowContents = "SHALLOW".getBytes(Charsets.UTF_8);
+
+    // ACT
+    repo.updateFiles(
+        ImmutableMap.of("a/b/c/deep.txt", deepContents, "a/shallow.txt", shallowContents),
+        ImmutableList.of());
+
+    // ASSERT
+    assertThat(repo.listFiles("HEAD"))
+        .containsExactly("skeleton.sh", "a/b/c/deep.txt", "a/shallow.txt");
+    assertThat(repo.readFile("HEAD", "a/b/c/deep.txt")).isEqualTo(deepContents);
+    assertThat(repo.readFile("HEAD", "a/shallow.txt")).isEqualTo(shallowContents);
+  }
+
+  @Test
+  public void deleteFile_removesTrackedFileFromHead()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    repo.updateFile("dir/nested.txt", "NESTED".getBytes(Charsets.UTF_8));
+
+    // ACT
+    repo.deleteFile("dir/nested.txt");
+
+    // ASSERT
+    assertThat(repo.listFiles("HEAD")).containsExactly("skeleton.sh");
+    try {
+      repo.readFile("HEAD", "dir/nested.txt");
+      fail("Expected RepoFileNotFoundException");
+    } catch (RepoFileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void updateFile_makesFirstCommitInEmptyRepo()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException, RepoNotFoundException {
+
+    // ARRANGE
+    Calendar calendar = Calendar.getInstance();
+    calendar.add(Calendar.YEAR, 10);
+    Repo emptyRepo =
+        testEnvironment
+            .getRepoFactory()
+            .createInstance(
+                task.getTaskId(),
+                true,
+                calendar.getTime(),
+                TestEnvironment.VARIANT,
+                RepoInfo.REMOTE_UNSET,
+                0);
+    byte[] contents = "FIRST".getBytes(Charsets.UTF_8);
+
+    // ACT
+    emptyRepo.updateFile("first.txt", contents);
+
+    // ASSERT
+    assertThat(emptyRepo.listFiles("HEAD")).containsExactly("first.txt");
+    assertThat(emptyRepo.readFile("HEAD", "first.txt")).isEqualTo(contents);
+  }
+
+  @Test
+  public void resolveFile_changesOnlyWhenContentsChange()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          RepoTagNotFoundException {
+
+    // ARRANGE
+    ObjectId original = repo.resolveFile("HEAD", "skeleton.sh");
+    repo.updateFile("other.txt", "OTHER".getBytes(Charsets.UTF_8));
+    ObjectId afterUnrelatedUpdate = repo.resolveFile("HEAD", "skeleton.sh");
+
+    // ACT
+    repo.updateFile("skeleton.sh", "NEW CONTENTS".getBytes(Charsets.UTF_8));
+    ObjectId afterUpdate = repo.resolveFile("HEAD", "skeleton.sh");
+
+    // ASSERT
+    assertThat(afterUnrelatedUpdate).isEqualTo(original);
+    assertThat(afterUpdate).isNotEqualTo(original);
+  }
+
+  @Test
+  public void copySkeleton_doesNotDuplicateSharedObjects()
+      throws RepoStorageException, RepoFileNotFoundException, RepoTagNotFoundException {
+
+    // ARRANGE
+    File objects =
+        new File(testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId()), ".git/objects");
+
+    // ACT
+    ObjectId skeletonBlob = repo.resolveFile("HEAD", "skeleton.sh");
+    String name = skeletonBlob.getName();
+    File looseBlob = new File(new File(objects, name.substring(0, 2)), name.substring(2));
+
+    // ASSERT
+    assertThat(new File(objects, "info/alternates").exists()).isTrue();
+    assertThat(looseBlob.exists()).isFalse();
+  }
+
+  @Test
+  public void runMaintenance_doesNotPackSharedObjectsIntoRepo()
+      throws RepoStorageException, RepoExpiredException, RepoFileNotFoundException,
+          RepoTagNotFoundException, IOException {
+
+    // ARRANGE
+    repo.updateFile("extra.txt", "EXTRA".getBytes(Charsets.UTF_8));
+    ObjectId skeletonBlob = repo.resolveFile("HEAD", "skeleton.sh");
+    File packDir =
+        new File(testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId()), ".git/objects/pack");
+
+    // ACT
+    boolean repacked = repo.runMaintenance(-1);
+
+    // ASSERT
+    assertThat(repacked).isTrue();
+    File[] indexes = packDir.listFiles((dir, name) -> name.endsWith(".idx"));
+    assertThat(indexes).isNotEmpty();
+    for (File index : indexes) {
+      assertThat(PackIndex.open(index).hasObject(skeletonBlob)).isFalse();
+    }
+    assertThat(new String(repo.readFile("HEAD", "skeleton.sh"), Charsets.UTF_8))
+        .isEqualTo(TestEnvironment.printingScript("Skeleton"));
+  }
+
+  @Test
+  public void scan_repacksRepoOverLooseObjectThreshold()
+      throws RepoExpiredException, RepoFileNotFoundException, RepoStorageException,
+          InterruptedException {
+
+    // ARRANGE
+    // Maintenance estimates the loose objects from the 17/ fan-out directory so make sure that
+    // something lands there
+    byte[] contents;
+    int i = 0;
+    do {
+      contents = ("contents " + i++).getBytes(Charsets.UTF_8);
+    } while (!new ObjectInserter.Formatter()
+        .idFor(Constants.OBJ_BLOB, contents)
+        .getName()
+        .startsWith("17"));
+    repo.updateFile("loose.txt", contents);
+    RepoMaintenance repoMaintenance = new RepoMaintenance(testEnvironment.getRepoFactory(), 1, 0);
+
+    // ACT
+    repoMaintenance.scan();
+    long deadline = System.currentTimeMillis() + 30000;
+    while (repoMaintenance.getPending() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    repoMaintenance.stop();
+
+    // ASSERT
+    assertThat(repoMaintenance.getReposRepacked()).isEqualTo(1);
+    assertThat(repoMaintenance.getFailures()).isEqualTo(0);
+  }
+
+  @Test
+  public void archiveExpiredRepos_restoresRepoForExistingHolder()
+      throws RepoStorageException, RepoExpiredException, RepoNotFoundException,
+          TaskNotFoundException, RepoFileNotFoundException, RepoTagNotFoundException,
+          InterruptedException, IOException {
+
+    // ARRANGE
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      repoFactory.initialiseInstance(
+          c, testEnvironment.getWorker(), testEnvironment.getDatabase(), repo.getRepoId(), 0);
+    }
+    Thread.sleep(10);
+    repoFactory.stop();
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+
+    // ACT
+    int archived = repoFactory.archiveExpiredRepos();
+    boolean existedWhilstArchived = repoDir.exists();
+    byte[] contents = repo.readFile("HEAD", "skeleton.sh");
+
+    // ASSERT
+    assertThat(archived).isEqualTo(1);
+    assertThat(existedWhilstArchived).isFalse();
+    assertThat(new String(contents, Charsets.UTF_8))
+        .isEqualTo(TestEnvironment.printingScript("Skeleton"));
+    assertThat(repoFactory.getInstance(repo.getRepoId())).isSameAs(repo);
+  }
+
+  @Test
+  public void archiveExpiredRepos_doesNotArchiveRestoredRepoAgain()
+      throws RepoStorageException, RepoExpiredException, RepoNotFoundException,
+          TaskNotFoundException, RepoFileNotFoundException, RepoTagNotFoundException,
+          InterruptedException {
+
+    // ARRANGE
+    RepoFactory repoFactory = testEnvironment.getRepoFactory();
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      repoFactory.initialiseInstance(
+          c, testEnvironment.getWorker(), testEnvironment.getDatabase(), repo.getRepoId(), 0);
+    }
+    Thread.sleep(10);
+    repoFactory.stop();
+    File repoDir = testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId());
+    int firstArchived = repoFactory.archiveExpiredRepos();
+    repo.readFile("HEAD", "skeleton.sh");
+    repoFactory.stop();
+
+    // ACT
+    int secondArchived = repoFactory.archiveExpiredRepos();
+
+    // ASSERT
+    assertThat(firstArchived).isEqualTo(1);
+    assertThat(secondArchived).isEqualTo(0);
+    assertThat(repoDir.exists()).isTrue();
+  }
+
   @Test
   public void resolveHeadSha_findsCorrectValue()
       throws IOException, GitAPIException, RepoStorageException {
@@ -149,4 +575,92 @@ public class TestRepo {
     // ASSERT
     assertThat(foundSha).isEqualTo(headSha);
   }
+
+  @Test
+  public void resolveHeadSha_seesNewLocalCommitsStraightAway()
+      throws IOException, RepoStorageException, RepoExpiredException, RepoFileNotFoundException {
+
+    // ARRANGE
+    String before = repo.resolveHeadSha();
+    repo.updateFile("extra.txt", "EXTRA".getBytes(Charsets.UTF_8));
+    String expectedSha;
+    try (Git g = Git.open(testEnvironment.getRepoConfig().getRepoDir(repo.getRepoId()))) {
+      expectedSha = g.getRepository().resolve(Constants.HEAD).getName();
+    }
+
+    // ACT
+    String after = repo.resolveHeadSha();
+
+    // ASSERT
+    assertThat(after).isNotEqualTo(before);
+    assertThat(after).isEqualTo(expectedSha);
+  }
+
+  @Test
+  public void resolveHeadSha_remembersRemoteHeadForAShortTime()
+      throws IOException, GitAPIException, RepoStorageException, RepoNotFoundException {
+
+    // ARRANGE
+    File remoteDir = new File(testRootDir, "remote");
+    Repo remoteRepo = testEnvironment.createRemoteRepo(task, remoteDir);
+    String initialSha;
+    try (Git g = Git.open(remoteDir)) {
+      initialSha = g.getRepository().resolve(Constants.HEAD).getName();
+    }
+    String firstLookup = remoteRepo.resolveHeadSha();
+    try (Git g = Git.open(remoteDir)) {
+      Files.write(new byte[] {0}, new File(remoteDir, "extra.txt"));
+      g.add().addFilepattern("extra.txt").call();
+      g.commit().setMessage("Another commit").call();
+    }
+
+    // ACT
+    String secondLookup = remoteRepo.resolveHeadSha();
+
+    // ASSERT
+    assertThat(firstLookup).isEqualTo(initialSha);
+    assertThat(secondLookup).isEqualTo(initialSha);
+  }
+
+  @Test
+  public void initialiseInstance_reusesCachedParameterisationForSameMutation()
+      throws TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException, RepoStorageException,
+          RepoNotFoundException, TaskNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException {
+
+    // ARRANGE
+    File generatorRuns = new File(testRootDir, "generator-runs");
+    Task parameterisedTask = testEnvironment.createCacheableParameterisedTask(generatorRuns);
+    testEnvironment.createParameterisedRepo(parameterisedTask, 0);
+
+    // ACT
+    Repo cachedRepo = testEnvironment.createParameterisedRepo(parameterisedTask, 0);
+
+    // ASSERT
+    assertThat(Files.readLines(generatorRuns, Charsets.UTF_8)).hasSize(1);
+    assertThat(new String(cachedRepo.readFile("HEAD", "param.txt"), Charsets.UTF_8))
+        .isEqualTo("Mutation 0\n");
+  }
+
+  @Test
+  public void initialiseInstance_runsGeneratorForUncachedMutation()
+      throws TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException, RepoStorageException,
+          RepoNotFoundException, TaskNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException {
+
+    // ARRANGE
+    File generatorRuns = new File(testRootDir, "generator-runs");
+    Task parameterisedTask = testEnvironment.createCacheableParameterisedTask(generatorRuns);
+    testEnvironment.createParameterisedRepo(parameterisedTask, 0);
+
+    // ACT
+    Repo otherRepo = testEnvironment.createParameterisedRepo(parameterisedTask, 1);
+
+    // ASSERT
+    assertThat(Files.readLines(generatorRuns, Charsets.UTF_8)).hasSize(2);
+    assertThat(new String(otherRepo.readFile("HEAD", "param.txt"), Charsets.UTF_8))
+        .isEqualTo("Mutation 1\n");
+  }
 }
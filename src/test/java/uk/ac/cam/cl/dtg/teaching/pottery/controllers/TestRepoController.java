@@ -0,0 +1,144 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.sql.SQLException;
+import java.util.List;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.jboss.resteasy.mock.MockHttpRequest;
+import org.jboss.resteasy.mock.MockHttpResponse;
+import org.jboss.resteasy.specimpl.RequestImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoTagNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoPool;
+
+public class TestRepoController {
+
+  private File testRootDir;
+  private TestEnvironment testEnvironment;
+  private Repo repo;
+  private RepoController repoController;
+
+  /** Configure the test environment with a repo and a controller to serve it. */
+  @Before
+  public void setup()
+      throws IOException, GitAPIException, TaskStorageException, SQLException,
+          TaskNotFoundException, CriterionNotFoundException, RetiredTaskException,
+          RepoExpiredException, RepoNotFoundException, RepoStorageException,
+          InvalidTaskSpecificationException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.testEnvironment = new TestEnvironment(testRootDir.getPath());
+    this.repo = testEnvironment.createRepo(testEnvironment.createNoOpTask());
+    this.repoController =
+        new RepoController(
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getWorker(),
+            new RepoPool(
+                testEnvironment.getRepoFactory(),
+                testEnvironment.getTaskIndex(),
+                testEnvironment.getDatabase(),
+                testEnvironment.getWorker()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void listFiles_servesSecondListingOfSameTreeFromCache()
+      throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException {
+
+    // ARRANGE
+    List<String> first = repoController.listFiles(repo.getRepoId(), "HEAD", null, null);
+
+    // ACT
+    List<String> second = repoController.listFiles(repo.getRepoId(), "HEAD", null, null);
+
+    // ASSERT
+    assertThat(first).containsExactly("skeleton.sh");
+    // The listing is only built once per tree so the cached instance comes back again
+    assertThat(second).isSameAs(first);
+  }
+
+  @Test
+  public void listFiles_answersMatchingIfNoneMatchWithNotModified()
+      throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException,
+          URISyntaxException {
+
+    // ARRANGE
+    String entityTag = "\"" + repo.resolveTree("HEAD").getName() + "\"";
+    Request request =
+        new RequestImpl(
+            MockHttpRequest.get("/").header(HttpHeaders.IF_NONE_MATCH, entityTag),
+            new MockHttpResponse());
+
+    // ACT
+    try {
+      repoController.listFiles(repo.getRepoId(), "HEAD", request, null);
+      fail("Expected WebApplicationException");
+    } catch (WebApplicationException e) {
+
+      // ASSERT
+      assertThat(e.getResponse().getStatus())
+          .isEqualTo(Response.Status.NOT_MODIFIED.getStatusCode());
+    }
+  }
+
+  @Test
+  public void listFiles_listsTreeWhenIfNoneMatchDiffers()
+      throws RepoStorageException, RepoNotFoundException, RepoTagNotFoundException,
+          URISyntaxException {
+
+    // ARRANGE
+    Request request =
+        new RequestImpl(
+            MockHttpRequest.get("/").header(HttpHeaders.IF_NONE_MATCH, "\"stale\""),
+            new MockHttpResponse());
+
+    // ACT
+    List<String> files = repoController.listFiles(repo.getRepoId(), "HEAD", request, null);
+
+    // ASSERT
+    assertThat(files).containsExactly("skeleton.sh");
+  }
+}
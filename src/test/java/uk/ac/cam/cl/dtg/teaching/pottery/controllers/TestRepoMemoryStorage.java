@@ -0,0 +1,200 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static uk.ac.cam.cl.dtg.teaching.pottery.controllers.TestEnvironment.VARIANT;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoTagNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoInfo;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+
+public class TestRepoMemoryStorage {
+
+  private File testRootDir;
+  private File memoryDir;
+  private TestEnvironment testEnvironment;
+  private Task task;
+
+  /** Configure the test environment. */
+  @Before
+  public void setup()
+      throws IOException, GitAPIException, TaskStorageException, SQLException,
+          CriterionNotFoundException, RetiredTaskException, InvalidTaskSpecificationException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.memoryDir = new File(testRootDir, "memory");
+    this.testEnvironment = new TestEnvironment(testRootDir.getPath());
+    this.task = testEnvironment.createNoOpTask();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  /** Make a config using memoryDir as the memory-backed storage, with the given limit. */
+  private RepoConfig memoryConfig(int maxMegabytes) {
+    return new RepoConfig(
+        testRootDir.getPath(), memoryDir.getPath(), maxMegabytes, 30, 0, false, false);
+  }
+
+  @Test
+  public void createInstance_putsShortLivedRepoInMemoryStorage()
+      throws IOException, RepoStorageException, RepoNotFoundException {
+    // ARRANGE
+    RepoConfig config = memoryConfig(Integer.MAX_VALUE);
+    RepoFactory repoFactory = new RepoFactory(config, testEnvironment.getDatabase());
+
+    // ACT
+    Repo repo =
+        repoFactory.createInstance(
+            task.getTaskId(), true, null, VARIANT, RepoInfo.REMOTE_UNSET, 0, 10);
+
+    // ASSERT
+    assertThat(config.getRepoMemoryDir(repo.getRepoId()).exists()).isTrue();
+    assertThat(config.getRepoDiskDir(repo.getRepoId()).exists()).isFalse();
+  }
+
+  @Test
+  public void createInstance_putsPermanentRepoOnDisk()
+      throws IOException, RepoStorageException, RepoNotFoundException {
+    // ARRANGE
+    RepoConfig config = memoryConfig(Integer.MAX_VALUE);
+    RepoFactory repoFactory = new RepoFactory(config, testEnvironment.getDatabase());
+
+    // ACT
+    Repo repo =
+        repoFactory.createInstance(
+            task.getTaskId(), true, null, VARIANT, RepoInfo.REMOTE_UNSET, 0, -1);
+
+    // ASSERT
+    assertThat(config.getRepoMemoryDir(repo.getRepoId()).exists()).isFalse();
+    assertThat(config.getRepoDiskDir(repo.getRepoId()).exists()).isTrue();
+  }
+
+  @Test
+  public void spillMemoryStorage_movesReposToDisk()
+      throws IOException, RepoStorageException, RepoNotFoundException {
+    // ARRANGE
+    RepoConfig roomyConfig = memoryConfig(Integer.MAX_VALUE);
+    Repo repo =
+        new RepoFactory(roomyConfig, testEnvironment.getDatabase())
+            .createInstance(task.getTaskId(), true, null, VARIANT, RepoInfo.REMOTE_UNSET, 0, 10);
+    RepoConfig fullConfig = memoryConfig(0);
+    RepoFactory repoFactory = new RepoFactory(fullConfig, testEnvironment.getDatabase());
+
+    // ACT
+    int spilled = repoFactory.spillMemoryStorage();
+
+    // ASSERT
+    assertThat(spilled).isEqualTo(1);
+    assertThat(fullConfig.getRepoMemoryDir(repo.getRepoId()).exists()).isFalse();
+    assertThat(new File(fullConfig.getRepoDiskDir(repo.getRepoId()), ".git").exists()).isTrue();
+    assertThat(repoFactory.getInstanceIncludingCreating(repo.getRepoId()).getRepoId())
+        .isEqualTo(repo.getRepoId());
+  }
+
+  @Test
+  public void spillMemoryStorage_keepsExistingRepoObjectWorking()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException {
+    // ARRANGE
+    // Repos with an expiry date are ready once they are loaded
+    Date expiryDate = new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+    String repoId =
+        new RepoFactory(memoryConfig(Integer.MAX_VALUE), testEnvironment.getDatabase())
+            .createInstance(
+                task.getTaskId(), true, expiryDate, VARIANT, RepoInfo.REMOTE_UNSET, 0, 10)
+            .getRepoId();
+    RepoConfig fullConfig = memoryConfig(0);
+    RepoFactory repoFactory = new RepoFactory(fullConfig, testEnvironment.getDatabase());
+    Repo heldRepo = repoFactory.getInstanceIncludingCreating(repoId);
+
+    // ACT
+    repoFactory.spillMemoryStorage();
+    heldRepo.updateFile("extra.txt", "EXTRA".getBytes(StandardCharsets.UTF_8));
+
+    // ASSERT
+    assertThat(new String(heldRepo.readFile("HEAD", "extra.txt"), StandardCharsets.UTF_8))
+        .isEqualTo("EXTRA");
+    assertThat(new File(fullConfig.getRepoDiskDir(repoId), "extra.txt").exists()).isTrue();
+    assertThat(repoFactory.getInstanceIncludingCreating(repoId)).isSameAs(heldRepo);
+  }
+
+  @Test
+  public void spillMemoryStorage_skipsRepoWhichIsNotReady()
+      throws IOException, RepoStorageException, RepoNotFoundException {
+    // ARRANGE
+    String repoId =
+        new RepoFactory(memoryConfig(Integer.MAX_VALUE), testEnvironment.getDatabase())
+            .createInstance(task.getTaskId(), true, null, VARIANT, RepoInfo.REMOTE_UNSET, 0, 10)
+            .getRepoId();
+    RepoConfig fullConfig = memoryConfig(0);
+    RepoFactory repoFactory = new RepoFactory(fullConfig, testEnvironment.getDatabase());
+    Repo loadedRepo = repoFactory.getInstanceIncludingCreating(repoId);
+
+    // ACT
+    int spilled = repoFactory.spillMemoryStorage();
+
+    // ASSERT
+    assertThat(loadedRepo.isReady()).isFalse();
+    assertThat(spilled).isEqualTo(0);
+    assertThat(fullConfig.getRepoMemoryDir(repoId).exists()).isTrue();
+  }
+
+  @Test
+  public void getMemoryStorageUsed_countsOnlyFilesUnderMemoryRoot()
+      throws IOException, RepoStorageException, RepoNotFoundException {
+    // ARRANGE
+    RepoConfig config = memoryConfig(Integer.MAX_VALUE);
+    new RepoFactory(config, testEnvironment.getDatabase())
+        .createInstance(task.getTaskId(), true, null, VARIANT, RepoInfo.REMOTE_UNSET, 0, 10);
+    Files.write(new byte[1024 * 1024], new File(testRootDir, "unrelated.bin"));
+    RepoFactory repoFactory = new RepoFactory(config, testEnvironment.getDatabase());
+
+    // ACT
+    long used = repoFactory.getMemoryStorageUsed();
+
+    // ASSERT
+    assertThat(used).isGreaterThan(0L);
+    assertThat(used).isLessThan(1024L * 1024L);
+  }
+}
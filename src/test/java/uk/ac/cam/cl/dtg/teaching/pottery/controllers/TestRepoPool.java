@@ -0,0 +1,213 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.controllers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static uk.ac.cam.cl.dtg.teaching.pottery.controllers.TestEnvironment.VARIANT;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskMissingVariantException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoPool;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
+
+public class TestRepoPool {
+
+  private File testRootDir;
+  private TestEnvironment testEnvironment;
+  private Task task;
+  private String copyId;
+  private RepoPool repoPool;
+
+  /** Configure the test environment. */
+  @Before
+  public void setup()
+      throws IOException, GitAPIException, TaskStorageException, SQLException,
+          CriterionNotFoundException, RetiredTaskException, InvalidTaskSpecificationException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.testEnvironment = new TestEnvironment(testRootDir.getPath());
+    this.task = testEnvironment.createNoOpTask();
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      this.copyId = c.getCopyId();
+    }
+    this.repoPool =
+        new RepoPool(
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getDatabase(),
+            testEnvironment.getWorker());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void claim_returnsReadyRepoAndRefillsPool()
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          RepoNotFoundException {
+    // ARRANGE
+    repoPool.setTarget(task.getTaskId(), true, VARIANT, 2);
+
+    // ACT
+    Repo repo = repoPool.claim(task.getTaskId(), true, VARIANT, -1, copyId, 60);
+
+    // ASSERT
+    assertThat(repo).isNotNull();
+    assertThat(repo.isReady()).isTrue();
+    assertThat(repoPool.getClaimed()).isEqualTo(1);
+    assertThat(repoPool.getPoolStatus().values().iterator().next().get("ready")).isEqualTo(2);
+  }
+
+  @Test
+  public void claim_missesForOlderTaskCopy()
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          RepoNotFoundException {
+    // ARRANGE
+    repoPool.setTarget(task.getTaskId(), true, VARIANT, 1);
+
+    // ACT
+    Repo repo = repoPool.claim(task.getTaskId(), true, VARIANT, -1, "some-other-copy", 60);
+
+    // ASSERT
+    assertThat(repo).isNull();
+    assertThat(repoPool.getMissed()).isEqualTo(1);
+  }
+
+  @Test
+  public void setTarget_fillsPoolOnWorker()
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          RepoNotFoundException {
+    // ARRANGE
+    QueueingWorker queueingWorker = new QueueingWorker();
+    RepoPool queuedPool =
+        new RepoPool(
+            testEnvironment.getRepoFactory(),
+            testEnvironment.getTaskIndex(),
+            testEnvironment.getDatabase(),
+            queueingWorker);
+
+    // ACT
+    queuedPool.setTarget(task.getTaskId(), true, VARIANT, 2);
+
+    // ASSERT
+    Map<String, Integer> status = queuedPool.getPoolStatus().values().iterator().next();
+    assertThat(status.get("ready")).isEqualTo(0);
+    assertThat(status.get("pending")).isEqualTo(0);
+    assertThat(queueingWorker.getQueue()).hasSize(1);
+  }
+
+  @Test
+  public void setTarget_rejectsUnknownVariant()
+      throws TaskNotFoundException, RepoStorageException, RepoNotFoundException {
+    // ACT
+    try {
+      repoPool.setTarget(task.getTaskId(), true, "no-such-variant", 1);
+      fail("Expected TaskMissingVariantException");
+    } catch (TaskMissingVariantException e) {
+      // expected
+    }
+
+    // ASSERT
+    assertThat(repoPool.getPoolStatus()).isEmpty();
+  }
+
+  @Test
+  public void setTarget_dropsSurplusWhenTargetLowered()
+      throws TaskNotFoundException, TaskMissingVariantException {
+    // ARRANGE
+    repoPool.setTarget(task.getTaskId(), true, VARIANT, 3);
+
+    // ACT
+    repoPool.setTarget(task.getTaskId(), true, VARIANT, 1);
+
+    // ASSERT
+    Map<String, Integer> status = repoPool.getPoolStatus().values().iterator().next();
+    assertThat(status.get("ready") + status.get("pending")).isEqualTo(1);
+  }
+
+  @Test
+  public void claim_findsMutationForSeedGivenWithTarget()
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException {
+    // ARRANGE
+    Task parameterisedTask =
+        testEnvironment.createCacheableParameterisedTask(new File(testRootDir, "runs.txt"));
+    String parameterisedCopyId;
+    try (TaskCopy c = parameterisedTask.acquireTestingCopy()) {
+      parameterisedCopyId = c.getCopyId();
+    }
+    repoPool.setTarget(parameterisedTask.getTaskId(), true, VARIANT, 1, ImmutableList.of(3));
+
+    // ACT
+    Repo repo =
+        repoPool.claim(parameterisedTask.getTaskId(), true, VARIANT, 1, parameterisedCopyId, 60);
+
+    // ASSERT
+    assertThat(repo).isNotNull();
+    assertThat(repoPool.getMissed()).isEqualTo(0);
+  }
+
+  @Test
+  public void claim_makesMissedMutationNext()
+      throws TaskNotFoundException, TaskMissingVariantException, RepoStorageException,
+          TaskStorageException, IOException, GitAPIException, CriterionNotFoundException,
+          RetiredTaskException, InvalidTaskSpecificationException {
+    // ARRANGE
+    Task parameterisedTask =
+        testEnvironment.createCacheableParameterisedTask(new File(testRootDir, "runs.txt"));
+    String parameterisedCopyId;
+    try (TaskCopy c = parameterisedTask.acquireTestingCopy()) {
+      parameterisedCopyId = c.getCopyId();
+    }
+    // Without any seeds the first pooled repo has mutation 0
+    repoPool.setTarget(parameterisedTask.getTaskId(), true, VARIANT, 1);
+    Repo missed =
+        repoPool.claim(parameterisedTask.getTaskId(), true, VARIANT, 1, parameterisedCopyId, 60);
+
+    // ACT
+    Repo repo =
+        repoPool.claim(parameterisedTask.getTaskId(), true, VARIANT, 1, parameterisedCopyId, 60);
+
+    // ASSERT
+    assertThat(missed).isNull();
+    assertThat(repo).isNotNull();
+    assertThat(repoPool.getClaimed()).isEqualTo(1);
+  }
+}
@@ -23,15 +23,24 @@ import static uk.ac.cam.cl.dtg.teaching.pottery.controllers.TestEnvironment.ACTI
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.containers.UncontainerImpl;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.CriterionNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.InvalidTaskSpecificationException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RetiredTaskException;
@@ -41,13 +50,17 @@ import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskNotFoundException;
 import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.TaskStorageException;
 import uk.ac.cam.cl.dtg.teaching.pottery.model.Submission;
 import uk.ac.cam.cl.dtg.teaching.pottery.repo.Repo;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoFactory;
+import uk.ac.cam.cl.dtg.teaching.pottery.repo.RepoInfo;
 import uk.ac.cam.cl.dtg.teaching.pottery.task.Task;
+import uk.ac.cam.cl.dtg.teaching.pottery.task.TaskCopy;
 
 public class TestSubmission {
 
   private File testRootDir;
   private Repo repo;
   private TestEnvironment testEnvironment;
+  private Task task;
 
   /** Configure the test environment. */
   @Before
@@ -60,7 +73,7 @@ public class TestSubmission {
     this.testRootDir = Files.createTempDir().getCanonicalFile();
     this.testEnvironment = new TestEnvironment(testRootDir.getPath());
 
-    Task task = testEnvironment.createNoOpTask();
+    this.task = testEnvironment.createNoOpTask();
     this.repo = testEnvironment.createRepo(task);
   }
 
@@ -79,4 +92,319 @@ public class TestSubmission {
     Submission submission = repo.getSubmission(tag, ACTION, testEnvironment.getDatabase());
     assertThat(submission.isComplete()).isTrue();
   }
+
+  @Test
+  public void scheduleSubmission_dropsFinishedSubmissionFromActiveSubmissions()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(
+        tag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+
+    // ASSERT
+    assertThat(repo.getActiveSubmissionCount()).isEqualTo(0);
+    Submission submission = repo.getSubmission(tag, ACTION, testEnvironment.getDatabase());
+    assertThat(submission.isComplete()).isTrue();
+  }
+
+  @Test
+  public void scheduleSubmission_updatesTestingCheckoutForLaterTag()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, RepoFileNotFoundException, IOException {
+    // ARRANGE
+    String firstTag = repo.createNewTag();
+    repo.scheduleSubmission(
+        firstTag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+    repo.updateFile("extra.txt", "EXTRA".getBytes(StandardCharsets.UTF_8));
+    String secondTag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(
+        secondTag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+
+    // ASSERT
+    Submission submission = repo.getSubmission(secondTag, ACTION, testEnvironment.getDatabase());
+    assertThat(submission.isComplete()).isTrue();
+    File testingDir = testEnvironment.getRepoConfig().getRepoTestingDir(repo.getRepoId());
+    assertThat(Files.asCharSource(new File(testingDir, "extra.txt"), StandardCharsets.UTF_8).read())
+        .isEqualTo("EXTRA");
+  }
+
+  @Test
+  public void scheduleSubmission_reusesResultForIdenticalTree()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, IOException {
+    // ARRANGE
+    String firstTag = repo.createNewTag();
+    repo.scheduleSubmission(
+        firstTag,
+        ACTION,
+        testEnvironment.getWorker(),
+        testEnvironment.getDatabase(),
+        testEnvironment.getTaskIndex());
+    File testingDir = testEnvironment.getRepoConfig().getRepoTestingDir(repo.getRepoId());
+    FileUtil.deleteRecursive(testingDir);
+    String secondTag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(
+        secondTag,
+        ACTION,
+        testEnvironment.getWorker(),
+        testEnvironment.getDatabase(),
+        testEnvironment.getTaskIndex());
+
+    // ASSERT
+    Submission submission = repo.getSubmission(secondTag, ACTION, testEnvironment.getDatabase());
+    assertThat(submission.isComplete()).isTrue();
+    assertThat(testingDir.exists()).isFalse();
+  }
+
+  @Test
+  public void watchSubmission_callsListenerWithoutHoldingRepoLock()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException, InterruptedException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    repo.scheduleSubmission(
+        tag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+    AtomicBoolean otherThreadFinished = new AtomicBoolean(false);
+    List<Long> versions = new ArrayList<>();
+    Repo.SubmissionListener listener =
+        (submission, version) -> {
+          versions.add(version);
+          Thread other =
+              new Thread(
+                  () -> {
+                    repo.unwatchSubmission(tag, ACTION, (s, v) -> {});
+                    otherThreadFinished.set(true);
+                  });
+          other.start();
+          try {
+            other.join(5000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        };
+
+    // ACT
+    repo.watchSubmission(tag, ACTION, -1, listener, testEnvironment.getDatabase());
+
+    // ASSERT
+    assertThat(versions).hasSize(1);
+    assertThat(otherThreadFinished.get()).isTrue();
+  }
+
+  @Test
+  public void watchSubmission_waitsWhenVersionIsCurrent()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    repo.scheduleSubmission(
+        tag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+    List<Long> currentVersion = new ArrayList<>();
+    repo.watchSubmission(
+        tag, ACTION, -1, (s, v) -> currentVersion.add(v), testEnvironment.getDatabase());
+    List<Long> versions = new ArrayList<>();
+    Repo.SubmissionListener listener = (submission, version) -> versions.add(version);
+
+    // ACT
+    repo.watchSubmission(
+        tag, ACTION, currentVersion.get(0), listener, testEnvironment.getDatabase());
+    repo.unwatchSubmission(tag, ACTION, listener);
+
+    // ASSERT
+    assertThat(versions).isEmpty();
+  }
+
+  @Test(timeout = 30000)
+  public void scheduleSubmission_returnsRunningSubmissionWithoutWaitingForIt()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          InterruptedException {
+    // ARRANGE
+    String tag = repo.createNewTag();
+    UncontainerImpl containerBackend = testEnvironment.getContainerBackend();
+    containerBackend.block();
+    Thread running =
+        new Thread(
+            () -> {
+              try {
+                repo.scheduleSubmission(
+                    tag, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+              } catch (RepoExpiredException | SubmissionStorageException | RepoStorageException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    running.start();
+    containerBackend.waitForBlocked();
+
+    // ACT
+    Submission submission;
+    try {
+      submission =
+          repo.scheduleSubmission(
+              tag,
+              ACTION,
+              testEnvironment.getWorker(),
+              testEnvironment.getDatabase(),
+              testEnvironment.getTaskIndex());
+    } finally {
+      containerBackend.unblock();
+      running.join();
+    }
+
+    // ASSERT
+    assertThat(submission.isComplete()).isFalse();
+  }
+
+  @Test
+  public void scheduleSubmission_testsRemoteRepoFromLocalMirror()
+      throws RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          SubmissionStorageException, SubmissionNotFoundException, IOException, GitAPIException {
+    // ARRANGE
+    File remoteDir = new File(testRootDir, "remote");
+    Repo remoteRepo = testEnvironment.createRemoteRepo(task, remoteDir);
+    String headSha = remoteRepo.resolveHeadSha();
+
+    // ACT
+    remoteRepo.scheduleSubmission(
+        headSha, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+
+    // ASSERT
+    Submission submission =
+        remoteRepo.getSubmission(headSha, ACTION, testEnvironment.getDatabase());
+    assertThat(submission.isComplete()).isTrue();
+    File mirrorDir = testEnvironment.getRepoConfig().getRepoMirrorDir(remoteRepo.getRepoId());
+    assertThat(resolve(mirrorDir, Constants.R_HEADS + Constants.MASTER)).isEqualTo(headSha);
+    File testingDir = testEnvironment.getRepoConfig().getRepoTestingDir(remoteRepo.getRepoId());
+    assertThat(resolve(testingDir, Constants.HEAD)).isEqualTo(headSha);
+  }
+
+  @Test
+  public void scheduleSubmission_fetchesNewRemoteCommitsThroughMirror()
+      throws RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          SubmissionStorageException, SubmissionNotFoundException, IOException, GitAPIException {
+    // ARRANGE
+    File remoteDir = new File(testRootDir, "remote");
+    Repo remoteRepo = testEnvironment.createRemoteRepo(task, remoteDir);
+    remoteRepo.scheduleSubmission(
+        remoteRepo.resolveHeadSha(),
+        ACTION,
+        testEnvironment.getWorker(),
+        testEnvironment.getDatabase());
+    String newSha;
+    try (Git g = Git.open(remoteDir)) {
+      Files.write("EXTRA".getBytes(StandardCharsets.UTF_8), new File(remoteDir, "extra.txt"));
+      g.add().addFilepattern("extra.txt").call();
+      newSha = g.commit().setMessage("Add extra file").call().getName();
+    }
+
+    // ACT
+    remoteRepo.scheduleSubmission(
+        newSha, ACTION, testEnvironment.getWorker(), testEnvironment.getDatabase());
+
+    // ASSERT
+    Submission submission = remoteRepo.getSubmission(newSha, ACTION, testEnvironment.getDatabase());
+    assertThat(submission.isComplete()).isTrue();
+    File mirrorDir = testEnvironment.getRepoConfig().getRepoMirrorDir(remoteRepo.getRepoId());
+    assertThat(resolve(mirrorDir, Constants.R_HEADS + Constants.MASTER)).isEqualTo(newSha);
+    File testingDir = testEnvironment.getRepoConfig().getRepoTestingDir(remoteRepo.getRepoId());
+    assertThat(Files.asCharSource(new File(testingDir, "extra.txt"), StandardCharsets.UTF_8).read())
+        .isEqualTo("EXTRA");
+  }
+
+  private static String resolve(File gitDir, String revision) throws IOException {
+    try (Git g = Git.open(gitDir)) {
+      return g.getRepository().resolve(revision).getName();
+    }
+  }
+
+  @Test
+  public void scheduleSubmission_supersedesQueuedSubmissionForSameAction()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          TaskNotFoundException, SubmissionStorageException, SubmissionNotFoundException {
+    // ARRANGE
+    Repo supersedingRepo = createSupersedingRepo();
+    QueueingWorker queueingWorker = new QueueingWorker();
+    String firstTag = supersedingRepo.createNewTag();
+    supersedingRepo.scheduleSubmission(
+        firstTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+    String secondTag = supersedingRepo.createNewTag();
+
+    // ACT
+    supersedingRepo.scheduleSubmission(
+        secondTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+
+    // ASSERT
+    Submission first =
+        supersedingRepo.getSubmission(firstTag, ACTION, testEnvironment.getDatabase());
+    assertThat(first.getStatus()).isEqualTo(Submission.STATUS_FAILED);
+    assertThat(first.getErrorMessage()).contains(secondTag);
+  }
+
+  @Test
+  public void scheduleSubmission_skipsSupersededSubmissionWhenItIsReached()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          TaskNotFoundException, SubmissionStorageException, SubmissionNotFoundException {
+    // ARRANGE
+    Repo supersedingRepo = createSupersedingRepo();
+    QueueingWorker queueingWorker = new QueueingWorker();
+    String firstTag = supersedingRepo.createNewTag();
+    supersedingRepo.scheduleSubmission(
+        firstTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+    String secondTag = supersedingRepo.createNewTag();
+    supersedingRepo.scheduleSubmission(
+        secondTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+
+    // ACT
+    queueingWorker.runQueuedJobs(testEnvironment.getWorker());
+
+    // ASSERT
+    Submission first =
+        supersedingRepo.getSubmission(firstTag, ACTION, testEnvironment.getDatabase());
+    assertThat(first.getStatus()).isEqualTo(Submission.STATUS_FAILED);
+    assertThat(first.getErrorMessage()).contains(secondTag);
+    Submission second =
+        supersedingRepo.getSubmission(secondTag, ACTION, testEnvironment.getDatabase());
+    assertThat(second.isComplete()).isTrue();
+    assertThat(second.getStatus()).isNotEqualTo(Submission.STATUS_FAILED);
+  }
+
+  @Test
+  public void scheduleSubmission_leavesQueuedSubmissionAloneByDefault()
+      throws RepoStorageException, RepoExpiredException, SubmissionStorageException,
+          SubmissionNotFoundException {
+    // ARRANGE
+    QueueingWorker queueingWorker = new QueueingWorker();
+    String firstTag = repo.createNewTag();
+    repo.scheduleSubmission(firstTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+    String secondTag = repo.createNewTag();
+
+    // ACT
+    repo.scheduleSubmission(secondTag, ACTION, queueingWorker, testEnvironment.getDatabase());
+
+    // ASSERT
+    Submission first = repo.getSubmission(firstTag, ACTION, testEnvironment.getDatabase());
+    assertThat(first.isComplete()).isFalse();
+    assertThat(queueingWorker.getQueue()).hasSize(2);
+  }
+
+  /** Create a repo for the task using a config which supersedes queued submissions. */
+  private Repo createSupersedingRepo()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          TaskNotFoundException {
+    RepoConfig config = new RepoConfig(testRootDir.getPath(), "", 0, 0, 0, false, true);
+    RepoFactory repoFactory = new RepoFactory(config, testEnvironment.getDatabase());
+    Repo supersedingRepo =
+        repoFactory.createInstance(
+            task.getTaskId(), true, null, TestEnvironment.VARIANT, RepoInfo.REMOTE_UNSET, 0);
+    try (TaskCopy c = task.acquireTestingCopy()) {
+      supersedingRepo.copyAndCommitSkeletonFiles(c);
+    }
+    return supersedingRepo;
+  }
 }
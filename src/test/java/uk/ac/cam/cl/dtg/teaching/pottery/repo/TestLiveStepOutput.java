@@ -0,0 +1,85 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestLiveStepOutput {
+
+  @Test
+  public void subscribe_getsOutputSoFarThenNewOutput() throws InterruptedException {
+    // ARRANGE
+    LiveStepOutput liveStepOutput = new LiveStepOutput();
+    liveStepOutput.append("first");
+
+    // ACT
+    try (LiveStepOutput.Reader reader = liveStepOutput.subscribe()) {
+      liveStepOutput.append("second");
+      liveStepOutput.finish();
+
+      // ASSERT
+      assertThat(reader.next(0)).isEqualTo("first");
+      assertThat(reader.next(0)).isEqualTo("second");
+      assertThat(reader.next(0)).isNull();
+    }
+  }
+
+  @Test
+  public void next_returnsEmptyOnTimeout() throws InterruptedException {
+    // ARRANGE
+    LiveStepOutput liveStepOutput = new LiveStepOutput();
+
+    // ACT
+    try (LiveStepOutput.Reader reader = liveStepOutput.subscribe()) {
+      String chunk = reader.next(10);
+
+      // ASSERT
+      assertThat(chunk).isEmpty();
+    }
+  }
+
+  @Test
+  public void append_skipsOutputForSlowReader() throws InterruptedException {
+    // ARRANGE
+    LiveStepOutput liveStepOutput = new LiveStepOutput();
+    String chunk = Strings.repeat("x", 1024);
+
+    // ACT
+    try (LiveStepOutput.Reader reader = liveStepOutput.subscribe()) {
+      for (int i = 0; i < 1000; i++) {
+        liveStepOutput.append(chunk);
+      }
+      liveStepOutput.finish();
+
+      // ASSERT
+      StringBuilder read = new StringBuilder();
+      String next;
+      while ((next = reader.next(0)) != null) {
+        read.append(next);
+      }
+      assertThat(read.length()).isLessThan(100 * 1024);
+      assertThat(read.toString()).contains(LiveStepOutput.SKIPPED_MARKER);
+    }
+  }
+}
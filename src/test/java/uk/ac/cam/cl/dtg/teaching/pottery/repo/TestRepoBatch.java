@@ -0,0 +1,126 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.controllers.InMemoryDatabase;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+
+@RunWith(JUnit4.class)
+public class TestRepoBatch {
+
+  private File testRootDir;
+  private RepoFactory repoFactory;
+  private ImmutableList<Repo> repos;
+
+  /** Repos the batch has started initialising, in the order it started them. */
+  private List<Repo> started;
+
+  /** Completion callbacks for the repos which haven't been finished by the test yet. */
+  private List<Runnable> inFlight;
+
+  /** Create some repos to put in a batch. */
+  @Before
+  public void setup() throws IOException, RepoStorageException, RepoNotFoundException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.repoFactory =
+        new RepoFactory(new RepoConfig(testRootDir.getPath()), new InMemoryDatabase());
+    ImmutableList.Builder<Repo> builder = ImmutableList.builder();
+    for (int i = 0; i < 5; i++) {
+      builder.add(
+          repoFactory.createInstance("task", false, new Date(), "shell", RepoInfo.REMOTE_UNSET, i));
+    }
+    this.repos = builder.build();
+    this.started = new ArrayList<>();
+    this.inFlight = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    repoFactory.stop();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void start_initialisesNoMoreThanMaxParallelRepos() {
+    // ARRANGE
+    RepoBatch batch = newBatch(2);
+
+    // ACT
+    batch.start();
+
+    // ASSERT
+    assertThat(started).containsExactly(repos.get(0), repos.get(1)).inOrder();
+  }
+
+  @Test
+  public void start_initialisesNextRepoWhenOneFinishes() {
+    // ARRANGE
+    RepoBatch batch = newBatch(2);
+    batch.start();
+
+    // ACT
+    inFlight.remove(0).run();
+
+    // ASSERT
+    assertThat(started).containsExactly(repos.get(0), repos.get(1), repos.get(2)).inOrder();
+    assertThat(inFlight).hasSize(2);
+  }
+
+  @Test
+  public void start_initialisesEveryRepoInOrder() {
+    // ARRANGE
+    RepoBatch batch = newBatch(2);
+
+    // ACT
+    batch.start();
+    while (!inFlight.isEmpty()) {
+      inFlight.remove(0).run();
+    }
+
+    // ASSERT
+    assertThat(started).containsExactlyElementsIn(repos).inOrder();
+  }
+
+  private RepoBatch newBatch(int maxParallel) {
+    return new RepoBatch(
+        "batch",
+        repos,
+        maxParallel,
+        (repo, onFinished) -> {
+          started.add(repo);
+          inFlight.add(onFinished);
+        });
+  }
+}
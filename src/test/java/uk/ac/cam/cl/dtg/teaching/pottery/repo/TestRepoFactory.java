@@ -0,0 +1,268 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.RepoConfig;
+import uk.ac.cam.cl.dtg.teaching.pottery.config.ShardedDirectories;
+import uk.ac.cam.cl.dtg.teaching.pottery.controllers.InMemoryDatabase;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoExpiredException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoFileNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoNotFoundException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoStorageException;
+import uk.ac.cam.cl.dtg.teaching.pottery.exceptions.RepoTagNotFoundException;
+
+@RunWith(JUnit4.class)
+public class TestRepoFactory {
+
+  private static final String REPO_ID = "0ab1c2d3-e4f5-4a6b-8c7d-9e0f1a2b3c4d";
+
+  private static final String FILE_NAME = "file.txt";
+
+  private static final byte[] FILE_CONTENTS = "contents".getBytes(StandardCharsets.UTF_8);
+
+  private File testRootDir;
+  private RepoConfig config;
+  private InMemoryDatabase database;
+  private RepoFactory repoFactory;
+
+  /** Create an empty repo root and a factory which uses it. */
+  @Before
+  public void setup() throws IOException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    this.config = new RepoConfig(testRootDir.getPath());
+    this.database = new InMemoryDatabase();
+    this.repoFactory = new RepoFactory(config, database);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    repoFactory.stop();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void isRepoIdTaken_falseForUnusedId() {
+    // ACT
+    boolean taken = repoFactory.isRepoIdTaken(REPO_ID);
+
+    // ASSERT
+    assertThat(taken).isFalse();
+  }
+
+  @Test
+  public void isRepoIdTaken_seesRepoDirectoryCreatedAfterStartup() {
+    // ARRANGE
+    File repoDir = config.getRepoDir(REPO_ID);
+    repoDir.mkdirs();
+
+    // ACT
+    boolean taken = repoFactory.isRepoIdTaken(REPO_ID);
+
+    // ASSERT
+    assertThat(taken).isTrue();
+  }
+
+  @Test
+  public void isRepoIdTaken_seesArchivedRepo() throws IOException {
+    // ARRANGE
+    File archiveFile = config.getRepoArchiveFile(REPO_ID);
+    archiveFile.getParentFile().mkdirs();
+    archiveFile.createNewFile();
+
+    // ACT
+    boolean taken = repoFactory.isRepoIdTaken(REPO_ID);
+
+    // ASSERT
+    assertThat(taken).isTrue();
+  }
+
+  @Test
+  public void createRepos_decidesStorageForEachRepo() throws RepoStorageException {
+    // ARRANGE
+    File memoryDir = new File(testRootDir, "memory");
+    RepoConfig memoryConfig =
+        new RepoConfig(
+            testRootDir.getPath(), memoryDir.getPath(), Integer.MAX_VALUE, 30, 0, false, false);
+    List<RepoInfo> repoInfos = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      repoInfos.add(
+          new RepoInfo(
+              "0ab1c2d3-e4f5-4a6b-8c7d-9e0f1a2b3c4" + i,
+              "task",
+              false,
+              null,
+              "shell",
+              RepoInfo.REMOTE_UNSET,
+              null,
+              i,
+              null));
+    }
+    Iterator<Boolean> useMemoryStorage = ImmutableList.of(true, false).iterator();
+
+    // ACT
+    ImmutableList<Repo> repos =
+        Repo.createRepos(
+            repoInfos,
+            memoryConfig,
+            new InMemoryDatabase(),
+            new RepositoryHandleCache(),
+            new BlobCache(),
+            new TreeListingCache(),
+            new SubmissionResultCache(),
+            useMemoryStorage::next);
+
+    // ASSERT
+    assertThat(memoryConfig.getRepoMemoryDir(repos.get(0).getRepoId()).exists()).isTrue();
+    assertThat(memoryConfig.getRepoDiskDir(repos.get(0).getRepoId()).exists()).isFalse();
+    assertThat(memoryConfig.getRepoMemoryDir(repos.get(1).getRepoId()).exists()).isFalse();
+    assertThat(memoryConfig.getRepoDiskDir(repos.get(1).getRepoId()).exists()).isTrue();
+  }
+
+  @Test
+  public void migrateToShardedLayout_movesFlatRepoAndItsTestingDirectory()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException {
+    // ARRANGE
+    String repoId = createFlatRepo();
+    File flatTestingDir = ShardedDirectories.getFlatLocation(config.getRepoTestingRoot(), repoId);
+    flatTestingDir.mkdirs();
+
+    // ACT
+    int remaining = repoFactory.migrateToShardedLayout();
+
+    // ASSERT
+    assertThat(remaining).isEqualTo(0);
+    assertThat(ShardedDirectories.getFlatLocation(config.getRepoRoot(), repoId).exists())
+        .isFalse();
+    assertThat(config.getRepoDiskDir(repoId).exists()).isTrue();
+    assertThat(flatTestingDir.exists()).isFalse();
+    assertThat(
+            ShardedDirectories.getShardedLocation(config.getRepoTestingRoot(), repoId).exists())
+        .isTrue();
+    assertThat(repoFactory.getInstance(repoId).readFile("HEAD", FILE_NAME))
+        .isEqualTo(FILE_CONTENTS);
+  }
+
+  @Test
+  public void migrateToShardedLayout_leavesLoadedRepoForLaterPass()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException {
+    // ARRANGE
+    String repoId = createFlatRepo();
+    Repo loaded = repoFactory.getInstance(repoId);
+
+    // ACT
+    int remaining = repoFactory.migrateToShardedLayout();
+    byte[] loadedContents = loaded.readFile("HEAD", FILE_NAME);
+    // A later pass once the repo has left the cache, which a new factory gives us
+    repoFactory.stop();
+    repoFactory = new RepoFactory(config, database);
+    int remainingOnLaterPass = repoFactory.migrateToShardedLayout();
+
+    // ASSERT
+    assertThat(remaining).isEqualTo(1);
+    assertThat(loadedContents).isEqualTo(FILE_CONTENTS);
+    assertThat(remainingOnLaterPass).isEqualTo(0);
+    assertThat(config.getRepoDiskDir(repoId).exists()).isTrue();
+    assertThat(repoFactory.getInstance(repoId).readFile("HEAD", FILE_NAME))
+        .isEqualTo(FILE_CONTENTS);
+  }
+
+  @Test
+  public void migrateToShardedLayout_lookupDuringMoveFindsRepo()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException, RepoTagNotFoundException, InterruptedException {
+    // ARRANGE
+    String repoId = createFlatRepo();
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger remaining = new AtomicInteger();
+    AtomicReference<Exception> migrationFailure = new AtomicReference<>();
+    Thread migration =
+        new Thread(
+            () -> {
+              try {
+                start.await();
+                remaining.set(repoFactory.migrateToShardedLayout());
+              } catch (InterruptedException | RepoStorageException e) {
+                migrationFailure.set(e);
+              }
+            });
+    migration.start();
+
+    // ACT
+    start.countDown();
+    Repo repo = repoFactory.getInstance(repoId);
+    byte[] contents = repo.readFile("HEAD", FILE_NAME);
+    migration.join();
+
+    // ASSERT
+    assertThat(migrationFailure.get()).isNull();
+    assertThat(contents).isEqualTo(FILE_CONTENTS);
+    // Whichever got the repo first, the lookup and the move mustn't have interleaved: the repo is
+    // either still in the flat layout because it was loaded or it was moved before the lookup
+    File flatDir = ShardedDirectories.getFlatLocation(config.getRepoRoot(), repoId);
+    assertThat(flatDir.exists()).isEqualTo(remaining.get() == 1);
+    assertThat(repo.readFile("HEAD", FILE_NAME)).isEqualTo(FILE_CONTENTS);
+  }
+
+  /**
+   * Create a repo with one committed file and move it into the old flat layout. The factory which
+   * created it is replaced so that the repo isn't loaded.
+   */
+  private String createFlatRepo()
+      throws IOException, RepoStorageException, RepoNotFoundException, RepoExpiredException,
+          RepoFileNotFoundException {
+    Repo repo =
+        repoFactory.createInstance(
+            "task",
+            false,
+            new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)),
+            "shell",
+            RepoInfo.REMOTE_UNSET,
+            0);
+    repo.updateFile(FILE_NAME, FILE_CONTENTS);
+    String repoId = repo.getRepoId();
+    repoFactory.stop();
+    java.nio.file.Files.move(
+        config.getRepoDiskDir(repoId).toPath(),
+        ShardedDirectories.getFlatLocation(config.getRepoRoot(), repoId).toPath());
+    repoFactory = new RepoFactory(config, database);
+    return repoId;
+  }
+}
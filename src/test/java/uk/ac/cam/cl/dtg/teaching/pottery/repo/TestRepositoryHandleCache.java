@@ -0,0 +1,151 @@
+/*
+ * pottery-backend - Backend API for testing programming exercises
+ * Copyright © 2015-2018 BlueOptima Limited, Andrew Rice (acr31@cam.ac.uk)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.cam.cl.dtg.teaching.pottery.repo;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import uk.ac.cam.cl.dtg.teaching.pottery.FileUtil;
+
+@RunWith(JUnit4.class)
+public class TestRepositoryHandleCache {
+
+  private File testRootDir;
+
+  /** Handles opened by the cache under test, in the order it opened them. */
+  private List<TrackedRepository> openedHandles;
+
+  private RepositoryHandleCache repositoryHandles;
+
+  /** Create a git repo to open handles on and a cache which tracks when they are closed. */
+  @Before
+  public void setup() throws IOException, GitAPIException {
+    this.testRootDir = Files.createTempDir().getCanonicalFile();
+    Git.init().setDirectory(testRootDir).call().close();
+    this.openedHandles = new ArrayList<>();
+    this.repositoryHandles =
+        new RepositoryHandleCache() {
+          @Override
+          Repository open(File repoDirectory) throws IOException {
+            TrackedRepository repository = new TrackedRepository(repoDirectory);
+            openedHandles.add(repository);
+            return repository;
+          }
+        };
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    repositoryHandles.releaseAll();
+    FileUtil.deleteRecursive(testRootDir);
+  }
+
+  @Test
+  public void acquire_reusesHandleAcrossCalls() throws IOException {
+    // ARRANGE
+    Repository first;
+    try (Repository repository = repositoryHandles.acquire(testRootDir)) {
+      first = repository;
+    }
+
+    // ACT
+    Repository second;
+    try (Repository repository = repositoryHandles.acquire(testRootDir)) {
+      second = repository;
+    }
+
+    // ASSERT
+    assertThat(second).isSameAs(first);
+    assertThat(openedHandles).hasSize(1);
+    assertThat(openedHandles.get(0).closed).isFalse();
+    assertThat(repositoryHandles.getOpenedCount()).isEqualTo(1);
+    assertThat(repositoryHandles.getReusedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void release_keepsHandleInUseOpenUntilLastUserCloses() throws IOException {
+    // ARRANGE
+    Repository firstUser = repositoryHandles.acquire(testRootDir);
+    Repository secondUser = repositoryHandles.acquire(testRootDir);
+
+    // ACT
+    repositoryHandles.release(testRootDir);
+    boolean closedAfterEviction = openedHandles.get(0).closed;
+    firstUser.close();
+    boolean closedAfterFirstUser = openedHandles.get(0).closed;
+    secondUser.getConfig();
+    secondUser.close();
+
+    // ASSERT
+    assertThat(repositoryHandles.isCached(testRootDir)).isFalse();
+    assertThat(closedAfterEviction).isFalse();
+    assertThat(closedAfterFirstUser).isFalse();
+    assertThat(openedHandles.get(0).closed).isTrue();
+  }
+
+  @Test
+  public void acquire_opensNewHandleAfterRelease() throws IOException {
+    // ARRANGE
+    repositoryHandles.acquire(testRootDir).close();
+    repositoryHandles.release(testRootDir);
+
+    // ACT
+    repositoryHandles.acquire(testRootDir).close();
+
+    // ASSERT
+    assertThat(openedHandles).hasSize(2);
+    assertThat(openedHandles.get(0).closed).isTrue();
+    assertThat(openedHandles.get(1).closed).isFalse();
+  }
+
+  /** A repository handle which records when jgit really closes it. */
+  private static class TrackedRepository extends FileRepository {
+
+    private volatile boolean closed;
+
+    TrackedRepository(File repoDirectory) throws IOException {
+      super(
+          new FileRepositoryBuilder()
+              .setWorkTree(repoDirectory)
+              .setGitDir(new File(repoDirectory, Constants.DOT_GIT))
+              .setMustExist(true)
+              .setup());
+    }
+
+    @Override
+    protected void doClose() {
+      closed = true;
+      super.doClose();
+    }
+  }
+}